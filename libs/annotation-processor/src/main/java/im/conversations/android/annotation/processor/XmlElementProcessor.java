@@ -60,8 +60,11 @@ public class XmlElementProcessor extends AbstractProcessor {
         }
         try (final PrintWriter out = new PrintWriter(extensionFile.openWriter())) {
             out.println("package im.conversations.android.xmpp;");
+            out.println("import com.google.common.base.Supplier;");
             out.println("import com.google.common.collect.BiMap;");
             out.println("import com.google.common.collect.ImmutableBiMap;");
+            out.println("import com.google.common.collect.ImmutableMap;");
+            out.println("import java.util.Map;");
             out.println("import im.conversations.android.xmpp.ExtensionFactory;");
             out.println("import im.conversations.android.xmpp.model.Extension;");
             out.print("\n");
@@ -83,6 +86,24 @@ public class XmlElementProcessor extends AbstractProcessor {
             }
             out.println("EXTENSION_CLASS_MAP = builder.build();");
             out.println("}");
+            // constructor references let the parser instantiate extensions without reflection
+            out.println(
+                    "public static final Map<ExtensionFactory.Id, Supplier<? extends Extension>>"
+                            + " EXTENSION_FACTORY_MAP;");
+            out.println("static {");
+            out.println(
+                    "final var builder = new ImmutableMap.Builder<ExtensionFactory.Id, Supplier<?"
+                            + " extends Extension>>();");
+            for (final Map.Entry<Id, String> entry : maps.entrySet()) {
+                Id id = entry.getKey();
+                String clazz = entry.getValue();
+                out.format(
+                        "builder.put(new ExtensionFactory.Id(\"%s\",\"%s\"),%s::new);",
+                        id.name, id.namespace, clazz);
+                out.print("\n");
+            }
+            out.println("EXTENSION_FACTORY_MAP = builder.build();");
+            out.println("}");
             out.println(" private Extensions() {}");
             out.println("}");
             // writing generated file to out …
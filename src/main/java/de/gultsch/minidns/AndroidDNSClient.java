@@ -190,7 +190,10 @@ public class AndroidDNSClient extends AbstractDnsClient {
         }
     }
 
-    private static long expiresAt(final DnsMessage dnsMessage) {
+    /**
+     * @return the wall clock time in milliseconds after which the message must not be used anymore
+     */
+    public static long expiresAt(final DnsMessage dnsMessage) {
         return dnsMessage.receiveTimestamp + (Math.min(DNS_MAX_TTL, ttl(dnsMessage)) * 1000L);
     }
 
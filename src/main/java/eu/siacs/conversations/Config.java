@@ -78,11 +78,28 @@ public final class Config {
     public static final int LOW_PING_TIMEOUT = 1; // used after push received
     public static final int PING_TIMEOUT = 15;
     public static final int SOCKET_TIMEOUT = 15;
+    // delay before racing the next resolver result while the previous one has not connected yet
+    public static final long CONNECTION_ATTEMPT_DELAY = 250; // in milliseconds
+    // how long after their TTL cached resolver results are still used while being revalidated
+    public static final long RESOLVER_MAX_STALE = 3 * 24 * 60 * 60 * 1000L; // in milliseconds
+    // how long TLS sessions are kept for resumption
+    public static final int TLS_SESSION_TIMEOUT = 8 * 60 * 60; // in seconds
     public static final int CONNECT_TIMEOUT = 90;
     public static final int POST_CONNECTIVITY_CHANGE_PING_INTERVAL = 30;
     public static final int CONNECT_DISCO_TIMEOUT = 20;
     public static final int MINI_GRACE_PERIOD = 750;
 
+    // stanzas are handed from the socket reader to a per account handler thread
+    public static final int STANZA_DISPATCH_QUEUE_CAPACITY = 512;
+    public static final long STANZA_DISPATCH_SLOW_THRESHOLD = 250; // in milliseconds
+    public static final int STANZA_DISPATCH_DRAIN_TIMEOUT = 10; // in seconds
+
+    // outgoing stanzas are buffered up to about one TLS record. While the writer is corked (for
+    // example when resending after stream resumption) it flushes only once that buffer is full or
+    // the oldest pending stanza has waited this long
+    public static final int TAG_WRITER_BUFFER_SIZE = 16 * 1024; // in bytes
+    public static final long TAG_WRITER_CORK_MAX_LATENCY = 100; // in milliseconds
+
 
     // media file formats. Homogenous Android or Conversations only deployments can switch to opus
     // and webp
@@ -94,17 +111,43 @@ public final class Config {
     public static final Bitmap.CompressFormat IMAGE_FORMAT = Bitmap.CompressFormat.JPEG;
     public static final int IMAGE_QUALITY = 75;
 
+    public static final long THUMBNAIL_DISK_CACHE_SIZE = 32 * 1024 * 1024; // in bytes
+    public static final int THUMBNAIL_DISK_CACHE_QUALITY = 85;
+
     public static final boolean USE_OPUS_VOICE_MESSAGES = false;
 
     public static final int MESSAGE_MERGE_WINDOW = 20;
 
+    // updates to existing messages (status, markers, reactions) are written in batches
+    public static final long MESSAGE_WRITE_BEHIND_INTERVAL = 1000; // in milliseconds
+    public static final int MESSAGE_WRITE_BEHIND_MAX_PENDING = 256;
+
     public static final int PAGE_SIZE = 50;
+    // threads reading rosters and the first page of messages at startup
+    public static final int DATABASE_RESTORE_THREADS = 3;
+    public static final int DATABASE_CACHE_SIZE = 8 * 1024; // in KiB
+    public static final long DATABASE_MMAP_SIZE = 32 * 1024 * 1024; // in bytes
+    public static final long DATABASE_CHECKPOINT_INTERVAL = 5 * 60 * 1000; // in milliseconds
+    // conversations restored before the overview is refreshed for the first time
+    public static final int STARTUP_VISIBLE_CONVERSATIONS = 20;
+    // conversations that are neither visible nor unread are restored as summary only and get
+    // their messages when opened; they fall back to the summary after being closed for a while
+    public static final boolean LAZY_MESSAGE_LOADING = true;
+    public static final long MESSAGE_EVICTION_AGE = 30 * 60 * 1000; // in milliseconds
+    public static final long MESSAGE_EVICTION_INTERVAL = 5 * 60 * 1000; // in milliseconds
+    // a summary keeps everything newer than the archive reference and sent messages that still
+    // wait for a receipt; conversations with more of those get their full page instead
+    public static final int SUMMARY_MAX_MESSAGES = 100;
+    public static final long SUMMARY_RECEIPT_WINDOW = 7 * 24 * 60 * 60 * 1000L; // in milliseconds
+    // older messages are requested once fewer than this many items are above the first visible one
+    public static final int MESSAGE_PREFETCH_WINDOW = 25;
     public static final int MAX_NUM_PAGES = 3;
     public static final int MAX_SEARCH_RESULTS = 300;
 
     public static final int REFRESH_UI_INTERVAL = 500;
 
     public static final int MAX_DISPLAY_MESSAGE_CHARS = 4096;
+    public static final int RENDERED_MESSAGE_CACHE_SIZE = 512 * 1024; // in chars
     public static final int MAX_STORAGE_MESSAGE_CHARS = 2 * 1024 * 1024; // 2MB
 
     public static final long MILLISECONDS_IN_DAY = 24 * 60 * 60 * 1000;
@@ -123,7 +166,22 @@ public final class Config {
     public static final boolean USE_DIRECT_JINGLE_CANDIDATES = true;
     public static final boolean USE_JINGLE_MESSAGE_INIT = true;
 
+    // jingle file transfers copy through a small pool of large buffers that are hashed on a
+    // separate thread
+    public static final int JINGLE_FILE_TRANSFER_BUFFER_SIZE = 64 * 1024;
+    public static final int JINGLE_FILE_TRANSFER_BUFFERS = 4;
+
     public static final boolean DISABLE_HTTP_UPLOAD = false;
+
+    // large downloads from servers supporting range requests are fetched over several connections
+    public static final int HTTP_DOWNLOAD_PARALLELISM = 4;
+    public static final long HTTP_DOWNLOAD_CHUNK_SIZE = 2 * 1024 * 1024; // in bytes
+    public static final long HTTP_DOWNLOAD_CHUNKED_MIN_SIZE = 8 * 1024 * 1024; // in bytes
+
+    // read the stream with the Hashtable and reflection based parser (to compare against the
+    // allocation-light one)
+    public static final boolean USE_LEGACY_XML_READER = false;
+
     public static final boolean EXTENDED_SM_LOGGING = false; // log stanza counts
     public static final boolean BACKGROUND_STANZA_LOGGING =
             false; // log all stanzas that were received while the app is in background
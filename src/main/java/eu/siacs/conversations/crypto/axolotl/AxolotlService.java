@@ -3,6 +3,7 @@ package eu.siacs.conversations.crypto.axolotl;
 import static eu.siacs.conversations.utils.Random.SECURE_RANDOM;
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.security.KeyChain;
 import android.util.Log;
 import android.util.Pair;
@@ -1148,14 +1149,30 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         if (remoteSessions.isEmpty() && !acceptEmpty) {
             return false;
         }
-        for (XmppAxolotlSession session : remoteSessions) {
-            axolotlMessage.addDevice(session);
+        final List<XmppAxolotlSession> sessions = new ArrayList<>(remoteSessions);
+        sessions.addAll(ownSessions);
+        addDevices(axolotlMessage, sessions);
+        return true;
+    }
+
+    /**
+     * Encrypts the key for all sessions. The session records are loaded up front and written back
+     * in a single transaction instead of one query and one write per device. The cipher operations
+     * themselves stay sequential; libsignal runs all of them under one process wide lock.
+     */
+    private void addDevices(final XmppAxolotlMessage axolotlMessage, final Collection<XmppAxolotlSession> sessions) {
+        final List<SignalProtocolAddress> addresses = new ArrayList<>();
+        for (final XmppAxolotlSession session : sessions) {
+            addresses.add(session.getRemoteAddress());
         }
-        for (XmppAxolotlSession session : ownSessions) {
-            axolotlMessage.addDevice(session);
+        axolotlStore.beginSessionBatch(addresses);
+        try {
+            for (final XmppAxolotlSession session : sessions) {
+                axolotlMessage.addDevice(session);
+            }
+        } finally {
+            axolotlStore.endSessionBatch();
         }
-
-        return true;
     }
 
     //this is being used for private muc messages only
@@ -1169,14 +1186,13 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
             return false;
         }
         sessions.addAll(findOwnSessions());
-        for (XmppAxolotlSession session : sessions) {
-            axolotlMessage.addDevice(session);
-        }
+        addDevices(axolotlMessage, sessions);
         return true;
     }
 
     @Nullable
     public XmppAxolotlMessage encrypt(Message message) {
+        final long start = SystemClock.elapsedRealtime();
         final XmppAxolotlMessage axolotlMessage = new XmppAxolotlMessage(account.getJid().asBareJid(), getOwnDeviceId());
         final String content;
         if (message.hasFileOnRemoteHost()) {
@@ -1197,6 +1213,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         } else {
             success = buildHeader(axolotlMessage, (Conversation) message.getConversation());
         }
+        Log.d(Config.LOGTAG, getLogprefix(account) + "encrypted message " + message.getUuid() + " for " + axolotlMessage.getKeyCount() + " devices in " + (SystemClock.elapsedRealtime() - start) + "ms");
         return success ? axolotlMessage : null;
     }
 
@@ -15,9 +15,15 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import eu.siacs.conversations.Config;
@@ -58,6 +64,11 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 
 	private final HashSet<Integer> preKeysMarkedForRemoval = new HashSet<>();
 
+	// session records of the open batches, see beginSessionBatch(); guarded by batchedSessions
+	private final HashMap<SignalProtocolAddress, SessionRecord> batchedSessions = new HashMap<>();
+	private final HashSet<SignalProtocolAddress> modifiedSessions = new HashSet<>();
+	private int openSessionBatches = 0;
+
 	private final LruCache<String, FingerprintStatus> trustCache =
 			new LruCache<String, FingerprintStatus>(NUM_TRUSTS_TO_CACHE) {
 				@Override
@@ -270,8 +281,59 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public SessionRecord loadSession(SignalProtocolAddress address) {
-		SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
-		return (session != null) ? session : new SessionRecord();
+		synchronized (batchedSessions) {
+			final SessionRecord batched = batchedSessions.get(address);
+			if (batched != null) {
+				// hand out a copy; the cipher modifies the record even if it does not store it
+				try {
+					return new SessionRecord(batched.serialize());
+				} catch (final IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+			SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
+			return (session != null) ? session : new SessionRecord();
+		}
+	}
+
+	/**
+	 * Loads the sessions of the given addresses at once and keeps all sessions stored until the
+	 * matching {@link #endSessionBatch()} in memory. Batches may be nested or overlap.
+	 */
+	public void beginSessionBatch(final Collection<SignalProtocolAddress> addresses) {
+		synchronized (batchedSessions) {
+			++openSessionBatches;
+			final List<SignalProtocolAddress> missing = new ArrayList<>();
+			for (final SignalProtocolAddress address : addresses) {
+				if (!batchedSessions.containsKey(address)) {
+					missing.add(address);
+				}
+			}
+			if (!missing.isEmpty()) {
+				batchedSessions.putAll(mXmppConnectionService.databaseBackend.loadSessions(account, missing));
+			}
+		}
+	}
+
+	/**
+	 * Writes all sessions that have been stored since the first open batch in one transaction once
+	 * the last batch has ended.
+	 */
+	public void endSessionBatch() {
+		synchronized (batchedSessions) {
+			if (--openSessionBatches > 0) {
+				return;
+			}
+			if (!modifiedSessions.isEmpty()) {
+				final Map<SignalProtocolAddress, SessionRecord> modified = new HashMap<>();
+				for (final SignalProtocolAddress address : modifiedSessions) {
+					modified.put(address, batchedSessions.get(address));
+				}
+				mXmppConnectionService.databaseBackend.storeSessions(account, modified);
+			}
+			modifiedSessions.clear();
+			batchedSessions.clear();
+		}
 	}
 
 	/**
@@ -282,8 +344,16 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public List<Integer> getSubDeviceSessions(String name) {
-		return mXmppConnectionService.databaseBackend.getSubDeviceSessions(account,
-				new SignalProtocolAddress(name, 0));
+		synchronized (batchedSessions) {
+			final List<Integer> devices = mXmppConnectionService.databaseBackend.getSubDeviceSessions(account,
+					new SignalProtocolAddress(name, 0));
+			for (final SignalProtocolAddress address : modifiedSessions) {
+				if (address.getName().equals(name) && !devices.contains(address.getDeviceId())) {
+					devices.add(address.getDeviceId());
+				}
+			}
+			return devices;
+		}
 	}
 
 
@@ -298,7 +368,14 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-		mXmppConnectionService.databaseBackend.storeSession(account, address, record);
+		synchronized (batchedSessions) {
+			if (openSessionBatches > 0) {
+				batchedSessions.put(address, record);
+				modifiedSessions.add(address);
+			} else {
+				mXmppConnectionService.databaseBackend.storeSession(account, address, record);
+			}
+		}
 	}
 
 	/**
@@ -309,7 +386,10 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean containsSession(SignalProtocolAddress address) {
-		return mXmppConnectionService.databaseBackend.containsSession(account, address);
+		synchronized (batchedSessions) {
+			return batchedSessions.containsKey(address)
+					|| mXmppConnectionService.databaseBackend.containsSession(account, address);
+		}
 	}
 
 	/**
@@ -319,7 +399,11 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void deleteSession(SignalProtocolAddress address) {
-		mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		synchronized (batchedSessions) {
+			batchedSessions.remove(address);
+			modifiedSessions.remove(address);
+			mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		}
 	}
 
 	/**
@@ -330,8 +414,18 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	@Override
 	public void deleteAllSessions(String name) {
 		SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
-		mXmppConnectionService.databaseBackend.deleteAllSessions(account,
-				address);
+		synchronized (batchedSessions) {
+			final Iterator<SignalProtocolAddress> iterator = batchedSessions.keySet().iterator();
+			while (iterator.hasNext()) {
+				final SignalProtocolAddress batched = iterator.next();
+				if (batched.getName().equals(name)) {
+					iterator.remove();
+					modifiedSessions.remove(batched);
+				}
+			}
+			mXmppConnectionService.databaseBackend.deleteAllSessions(account,
+					address);
+		}
 	}
 
 	// --------------------------------------
@@ -191,6 +191,10 @@ public class XmppAxolotlMessage {
         }
     }
 
+    int getKeyCount() {
+        return keys.size();
+    }
+
     public byte[] getInnerKey() {
         return innerKey;
     }
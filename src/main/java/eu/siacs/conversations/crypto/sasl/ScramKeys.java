@@ -0,0 +1,83 @@
+package eu.siacs.conversations.crypto.sasl;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Base64;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ClientKey and ServerKey derived from the salted password. They are persisted per account and
+ * mechanism so that logging in after a restart does not have to run Hi() again.
+ */
+public class ScramKeys {
+
+    public static final String TABLENAME = "scram_keys";
+    public static final String ACCOUNT = "account";
+    public static final String MECHANISM = "mechanism";
+    public static final String SALT = "salt";
+    public static final String ITERATIONS = "iterations";
+    public static final String PASSWORD_HASH = "passwordHash";
+    public static final String CLIENT_KEY = "clientKey";
+    public static final String SERVER_KEY = "serverKey";
+
+    final String mechanism;
+    final String salt;
+    final int iterations;
+    // ties the keys to the password they have been derived from
+    final String passwordHash;
+    final byte[] clientKey;
+    final byte[] serverKey;
+
+    ScramKeys(
+            final String mechanism,
+            final String salt,
+            final int iterations,
+            final String passwordHash,
+            final byte[] clientKey,
+            final byte[] serverKey) {
+        this.mechanism = mechanism;
+        this.salt = salt;
+        this.iterations = iterations;
+        this.passwordHash = passwordHash;
+        this.clientKey = clientKey;
+        this.serverKey = serverKey;
+    }
+
+    static String passwordHash(final String password, final String salt) {
+        return Hashing.sha256()
+                .newHasher()
+                .putString(salt, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(password, StandardCharsets.UTF_8)
+                .hash()
+                .toString();
+    }
+
+    public static ScramKeys fromCursor(final Cursor cursor) {
+        return new ScramKeys(
+                cursor.getString(cursor.getColumnIndexOrThrow(MECHANISM)),
+                cursor.getString(cursor.getColumnIndexOrThrow(SALT)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(ITERATIONS)),
+                cursor.getString(cursor.getColumnIndexOrThrow(PASSWORD_HASH)),
+                Base64.decode(
+                        cursor.getString(cursor.getColumnIndexOrThrow(CLIENT_KEY)), Base64.DEFAULT),
+                Base64.decode(
+                        cursor.getString(cursor.getColumnIndexOrThrow(SERVER_KEY)),
+                        Base64.DEFAULT));
+    }
+
+    public ContentValues toContentValues(final String account) {
+        final ContentValues contentValues = new ContentValues();
+        contentValues.put(ACCOUNT, account);
+        contentValues.put(MECHANISM, mechanism);
+        contentValues.put(SALT, salt);
+        contentValues.put(ITERATIONS, iterations);
+        contentValues.put(PASSWORD_HASH, passwordHash);
+        contentValues.put(CLIENT_KEY, Base64.encodeToString(clientKey, Base64.NO_WRAP));
+        contentValues.put(SERVER_KEY, Base64.encodeToString(serverKey, Base64.NO_WRAP));
+        return contentValues;
+    }
+}
@@ -1,6 +1,8 @@
 package eu.siacs.conversations.crypto.sasl;
 
+import android.os.SystemClock;
 import android.util.Base64;
+import android.util.Log;
 
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Objects;
@@ -15,7 +17,10 @@ import java.util.concurrent.ExecutionException;
 import javax.crypto.SecretKey;
 import javax.net.ssl.SSLSocket;
 
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.Conversations;
 import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.utils.CryptoHelper;
 
 abstract class ScramMechanism extends SaslMechanism {
@@ -40,7 +45,7 @@ abstract class ScramMechanism extends SaslMechanism {
 
     private static final byte[] CLIENT_KEY_BYTES = "Client Key".getBytes();
     private static final byte[] SERVER_KEY_BYTES = "Server Key".getBytes();
-    private static final Cache<CacheKey, KeyPair> CACHE =
+    private static final Cache<CacheKey, ScramKeys> CACHE =
             CacheBuilder.newBuilder().maximumSize(10).build();
     protected final ChannelBinding channelBinding;
     private final String gs2Header;
@@ -74,11 +79,28 @@ abstract class ScramMechanism extends SaslMechanism {
 
     protected abstract HashFunction getDigest();
 
-    private KeyPair getKeyPair(final String password, final String salt, final int iterations)
+    private ScramKeys getKeys(final String password, final String salt, final int iterations)
             throws ExecutionException {
         return CACHE.get(
                 new CacheKey(getMechanism(), password, salt, iterations),
                 () -> {
+                    final String mechanism = getMechanism();
+                    final String passwordHash = ScramKeys.passwordHash(password, salt);
+                    final DatabaseBackend databaseBackend =
+                            DatabaseBackend.getInstance(Conversations.getContext());
+                    final ScramKeys stored =
+                            databaseBackend.findScramKeys(
+                                    account.getUuid(), mechanism, salt, iterations, passwordHash);
+                    if (stored != null) {
+                        Log.d(
+                                Config.LOGTAG,
+                                account.getJid().asBareJid()
+                                        + ": loaded "
+                                        + mechanism
+                                        + " keys from database");
+                        return stored;
+                    }
+                    final long start = SystemClock.elapsedRealtime();
                     final byte[] saltedPassword, serverKey, clientKey;
                     saltedPassword =
                             hi(
@@ -87,7 +109,21 @@ abstract class ScramMechanism extends SaslMechanism {
                                     iterations);
                     serverKey = hmac(saltedPassword, SERVER_KEY_BYTES);
                     clientKey = hmac(saltedPassword, CLIENT_KEY_BYTES);
-                    return new KeyPair(clientKey, serverKey);
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid()
+                                    + ": derived "
+                                    + mechanism
+                                    + " keys with "
+                                    + iterations
+                                    + " iterations in "
+                                    + (SystemClock.elapsedRealtime() - start)
+                                    + "ms");
+                    final ScramKeys keys =
+                            new ScramKeys(
+                                    mechanism, salt, iterations, passwordHash, clientKey, serverKey);
+                    databaseBackend.saveScramKeys(account.getUuid(), keys);
+                    return keys;
                 });
     }
 
@@ -210,10 +246,10 @@ abstract class ScramMechanism extends SaslMechanism {
                                         + clientFinalMessageWithoutProof)
                                 .getBytes();
 
-                final KeyPair keys;
+                final ScramKeys keys;
                 try {
                     keys =
-                            getKeyPair(
+                            getKeys(
                                     CryptoHelper.saslPrep(account.getPassword()),
                                     salt,
                                     iterationCount);
@@ -304,14 +340,4 @@ abstract class ScramMechanism extends SaslMechanism {
             return Objects.hashCode(algorithm, password, salt, iterations);
         }
     }
-
-    private static class KeyPair {
-        final byte[] clientKey;
-        final byte[] serverKey;
-
-        KeyPair(final byte[] clientKey, final byte[] serverKey) {
-            this.clientKey = clientKey;
-            this.serverKey = serverKey;
-        }
-    }
 }
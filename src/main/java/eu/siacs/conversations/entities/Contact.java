@@ -69,6 +69,8 @@ public class Contact implements ListItem, Blockable {
     private long mLastseen = 0;
     private String mLastPresence = null;
     private RtpCapability.Capability rtpCapability;
+    // what is currently stored in the database; null if there is no row for this contact
+    private ContentValues persistedContentValues = null;
 
     public Contact(final String account, final String systemName, final String serverName, final String presenceName,
                    final Jid jid, final int subscription, final String photoUri,
@@ -239,6 +241,23 @@ public class Contact implements ListItem, Blockable {
         }
     }
 
+    /**
+     * @return true if the contact is worth keeping in the database
+     */
+    public boolean isPersistable() {
+        return getOption(Options.IN_ROSTER)
+                || hasAvatarOrPresenceName()
+                || getOption(Options.SYNCED_VIA_OTHER);
+    }
+
+    public synchronized ContentValues getPersistedContentValues() {
+        return this.persistedContentValues;
+    }
+
+    public synchronized void setPersistedContentValues(final ContentValues contentValues) {
+        this.persistedContentValues = contentValues;
+    }
+
     public Account getAccount() {
         return this.account;
     }
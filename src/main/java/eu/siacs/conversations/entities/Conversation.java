@@ -7,7 +7,6 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
@@ -68,7 +67,12 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
     protected final ArrayList<Message> messages = new ArrayList<>();
+    // guarded by the lock on messages
+    private final MessageIndex messageIndex = new MessageIndex();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
+    // only the summary is in memory; see setSummary()
+    private volatile boolean summaryOnly = false;
+    private volatile long lastAccess = 0;
     protected Account account = null;
     private String draftMessage;
     private final String name;
@@ -79,6 +83,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private final long created;
     private int mode;
     private JSONObject attributes;
+    private int attributesVersion = 0;
+    private volatile SortKey sortKey = null;
     private Jid nextCounterpart;
     private transient MucOptions mucOptions = null;
     private boolean messagesLeftOnServer = true;
@@ -219,14 +225,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findUnsentMessageWithUuid(String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return MessageIndex.first(this.messages, messageIndex.withUuid(uuid), message -> {
                 final int s = message.getStatus();
-                if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+                return s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING;
+            }, false);
         }
-        return null;
     }
 
     public void findWaitingMessages(OnMessageFound onMessageFound) {
@@ -260,36 +263,27 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findMessageWithFileAndUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return MessageIndex.first(this.messages, messageIndex.withUuid(uuid), message -> {
                 final Transferable transferable = message.getTransferable();
                 final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
-                if (message.getUuid().equals(uuid)
-                        && message.getEncryption() != Message.ENCRYPTION_PGP
-                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING))) {
-                    return message;
-                }
-            }
+                return message.getEncryption() != Message.ENCRYPTION_PGP
+                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING));
+            }, false);
         }
-        return null;
     }
 
     public Message findMessageWithUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+            return MessageIndex.first(this.messages, messageIndex.withUuid(uuid), message -> true, false);
         }
-        return null;
     }
 
     public boolean markAsDeleted(final List<String> uuids) {
         boolean deleted = false;
         final PgpDecryptionService pgpDecryptionService = account.getPgpDecryptionService();
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (uuids.contains(message.getUuid())) {
+            for (final String uuid : uuids) {
+                for (final Message message : messageIndex.withUuid(uuid)) {
                     message.setDeleted(true);
                     deleted = true;
                     if (message.getEncryption() == Message.ENCRYPTION_PGP && pgpDecryptionService != null) {
@@ -305,15 +299,14 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         boolean changed = false;
         final PgpDecryptionService pgpDecryptionService = account.getPgpDecryptionService();
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                for (final DatabaseBackend.FilePathInfo file : files)
-                    if (file.uuid.toString().equals(message.getUuid())) {
-                        message.setDeleted(file.deleted);
-                        changed = true;
-                        if (file.deleted && message.getEncryption() == Message.ENCRYPTION_PGP && pgpDecryptionService != null) {
-                            pgpDecryptionService.discard(message);
-                        }
+            for (final DatabaseBackend.FilePathInfo file : files) {
+                for (final Message message : messageIndex.withUuid(file.uuid.toString())) {
+                    message.setDeleted(file.deleted);
+                    changed = true;
+                    if (file.deleted && message.getEncryption() == Message.ENCRYPTION_PGP && pgpDecryptionService != null) {
+                        pgpDecryptionService.discard(message);
                     }
+                }
             }
         }
         return changed;
@@ -322,6 +315,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void clearMessages() {
         synchronized (this.messages) {
             this.messages.clear();
+            this.messageIndex.clear();
+        }
+    }
+
+    void reindex(final Message message, final String uuid, final String remoteMsgId, final String serverMsgId) {
+        synchronized (this.messages) {
+            this.messageIndex.reindex(message, uuid, remoteMsgId, serverMsgId);
         }
     }
 
@@ -361,12 +361,112 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (pgpDecryptionService != null) {
                     pgpDecryptionService.discard(discards);
                 }
+                messageIndex.removeAll(discards);
                 discards.clear();
                 untieMessages();
             }
         }
     }
 
+    /**
+     * Puts only a summary of the conversation into memory instead of a full page: the latest
+     * message that can serve as archive reference, every message newer than that and the sent
+     * messages that may still receive a receipt. That is enough for the overview, for catching up
+     * with the archive without duplicating messages and for applying receipts. The page is added
+     * with {@link #addPage(List)} once the conversation is opened.
+     */
+    public void setSummary(final List<Message> summary) {
+        synchronized (this.messages) {
+            this.messages.addAll(0, summary);
+            this.messageIndex.addAll(summary);
+            this.summaryOnly = true;
+        }
+    }
+
+    public boolean isSummaryOnly() {
+        return this.summaryOnly;
+    }
+
+    /**
+     * Merges the page loaded from the database with the messages that are already in memory.
+     * Messages already in memory are kept so that references held elsewhere stay valid.
+     *
+     * @return false if the page was not needed because it has already been added
+     */
+    public boolean addPage(final List<Message> page) {
+        final List<Message> added = new ArrayList<>();
+        synchronized (this.messages) {
+            if (!this.summaryOnly) {
+                return false;
+            }
+            for (final Message message : page) {
+                if (this.messageIndex.withUuid(message.getUuid()).isEmpty()) {
+                    added.add(message);
+                }
+            }
+            this.messages.addAll(0, added);
+            this.messageIndex.addAll(added);
+            this.summaryOnly = false;
+            sort();
+        }
+        account.getPgpDecryptionService().decrypt(added);
+        return true;
+    }
+
+    /**
+     * Drops everything but the summary (see {@link #setSummary(List)}) from memory. Callers have
+     * to make sure that there are no unread or pending messages.
+     */
+    public void evictToSummary() {
+        synchronized (this.messages) {
+            if (this.summaryOnly || this.messages.isEmpty()) {
+                return;
+            }
+            final Message reference = findLastMessageTransmitted();
+            final long referenceTime = reference == null ? 0 : reference.getTimeSent();
+            final long receiptWindow = System.currentTimeMillis() - Config.SUMMARY_RECEIPT_WINDOW;
+            final List<Message> discards = new ArrayList<>();
+            for (final Message message : this.messages) {
+                final long timeSent = message.getTimeSent();
+                if (timeSent >= referenceTime) {
+                    continue;
+                }
+                if (message.getStatus() == Message.STATUS_SEND && timeSent >= receiptWindow) {
+                    continue;
+                }
+                discards.add(message);
+            }
+            final PgpDecryptionService pgpDecryptionService = account.getPgpDecryptionService();
+            if (pgpDecryptionService != null) {
+                pgpDecryptionService.discard(discards);
+            }
+            this.messageIndex.removeAll(discards);
+            this.messages.removeAll(discards);
+            untieMessages();
+            this.summaryOnly = true;
+        }
+    }
+
+    public boolean hasPendingMessages() {
+        synchronized (this.messages) {
+            for (final Message message : this.messages) {
+                final int status = message.getStatus();
+                if (status == Message.STATUS_UNSEND || status == Message.STATUS_WAITING) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void setLastAccess(final long lastAccess) {
+        this.lastAccess = lastAccess;
+    }
+
+    public long getLastAccess() {
+        return this.lastAccess;
+    }
+
     public void findUnsentTextMessages(OnMessageFound onMessageFound) {
         final ArrayList<Message> results = new ArrayList<>();
         synchronized (this.messages) {
@@ -383,66 +483,66 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
-                    return message;
-                }
-            }
+            return MessageIndex.first(this.messages, messageIndex.withUuidOrRemoteMsgId(id), message -> id.equals(message.getUuid())
+                    || (message.getStatus() >= Message.STATUS_SEND
+                    && id.equals(message.getRemoteMsgId())), false);
         }
-        return null;
     }
 
     public Message findMessageWithUuidOrRemoteId(final String id) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (id.equals(message.getUuid()) || id.equals(message.getRemoteMsgId())) {
-                    return message;
-                }
-            }
+            return MessageIndex.first(this.messages, messageIndex.withUuidOrRemoteMsgId(id), message -> true, false);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
         synchronized (this.messages) {
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 final Message message = messages.get(i);
-                final Jid mcp = message.getCounterpart();
-                if (mcp == null) {
-                    continue;
-                }
-                if (mcp.equals(counterpart) && ((message.getStatus() == Message.STATUS_RECEIVED) == received)
-                        && (carbon == message.isCarbon() || received)) {
-                    final boolean idMatch = id.equals(message.getRemoteMsgId()) || message.remoteMsgIdMatchInEdit(id);
-                    if (idMatch && !message.isFileOrImage() && !message.treatAsDownloadable()) {
-                        return message;
-                    } else {
-                        return null;
-                    }
+                if (isCorrectionCandidate(message, counterpart, received, carbon)) {
+                    return isCorrectable(message, id) ? message : null;
                 }
             }
         }
         return null;
     }
 
-    public Message findSentMessageWithUuid(String id) {
+    /**
+     * @return whether a message that {@link #findMessageWithRemoteIdAndCounterpart(String, Jid,
+     *     boolean, boolean)} would consider is in memory
+     */
+    public boolean hasCorrectionCandidate(final Jid counterpart, final boolean received, final boolean carbon) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
+            for (final Message message : this.messages) {
+                if (isCorrectionCandidate(message, counterpart, received, carbon)) {
+                    return true;
                 }
             }
         }
-        return null;
+        return false;
     }
 
-    public Message findMessageWithRemoteId(String id, Jid counterpart) {
+    public static boolean isCorrectionCandidate(final Message message, final Jid counterpart, final boolean received, final boolean carbon) {
+        final Jid mcp = message.getCounterpart();
+        return mcp != null
+                && mcp.equals(counterpart)
+                && ((message.getStatus() == Message.STATUS_RECEIVED) == received)
+                && (carbon == message.isCarbon() || received);
+    }
+
+    public static boolean isCorrectable(final Message message, final String id) {
+        final boolean idMatch = id.equals(message.getRemoteMsgId()) || message.remoteMsgIdMatchInEdit(id);
+        return idMatch && !message.isFileOrImage() && !message.treatAsDownloadable();
+    }
+
+    /**
+     * @return the latest message in memory that has been sent at or before the given time
+     */
+    public Message findLastMessageSentAtOrBefore(final long timeSent) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
+            for (int i = this.messages.size() - 1; i >= 0; --i) {
+                final Message message = this.messages.get(i);
+                if (message.getTimeSent() <= timeSent) {
                     return message;
                 }
             }
@@ -450,26 +550,28 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return null;
     }
 
+    public Message findSentMessageWithUuid(String id) {
+        synchronized (this.messages) {
+            return MessageIndex.first(this.messages, messageIndex.withUuid(id), message -> true, false);
+        }
+    }
+
+    public Message findMessageWithRemoteId(String id, Jid counterpart) {
+        synchronized (this.messages) {
+            return MessageIndex.first(this.messages, messageIndex.withUuidOrRemoteMsgId(id), message -> counterpart.equals(message.getCounterpart()), false);
+        }
+    }
+
     public Message findReceivedWithRemoteId(final String id) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getStatus() == Message.STATUS_RECEIVED && id.equals(message.getRemoteMsgId())) {
-                    return message;
-                }
-            }
+            return MessageIndex.first(this.messages, messageIndex.withRemoteMsgId(id), message -> message.getStatus() == Message.STATUS_RECEIVED, false);
         }
-        return null;
     }
 
     public Message findMessageWithServerMsgId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
-                    return message;
-                }
-            }
+            return MessageIndex.first(this.messages, messageIndex.withServerMsgId(id), message -> true, false);
         }
-        return null;
     }
 
     public boolean hasMessageWithCounterpart(Jid counterpart) {
@@ -564,20 +666,52 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     @Override
     public int compareTo(@NonNull Conversation another) {
-        return ComparisonChain.start()
-                .compareFalseFirst(another.getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false), getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false))
-                .compare(another.getSortableTime(), getSortableTime())
-                .result();
+        return getSortKey().compareTo(another.getSortKey());
     }
 
-    private long getSortableTime() {
-        Draft draft = getDraft();
-        long messageTime = getLatestMessage().getTimeSent();
-        if (draft == null) {
-            return messageTime;
+    /**
+     * Returns the values conversations are ordered by. The key is cached and only computed again
+     * once the latest message, its time or the attributes have changed; as long as the same
+     * instance is returned the position of the conversation in the list is unchanged.
+     */
+    public SortKey getSortKey() {
+        final Message latest;
+        synchronized (this.messages) {
+            latest = this.messages.isEmpty() ? null : this.messages.get(this.messages.size() - 1);
+        }
+        final int attributesVersion;
+        synchronized (this.attributes) {
+            attributesVersion = this.attributesVersion;
+        }
+        final long latestTime = latest == null ? 0 : latest.getTimeSent();
+        final SortKey current = this.sortKey;
+        if (current != null
+                && current.latest == latest
+                && current.latestTime == latestTime
+                && current.attributesVersion == attributesVersion) {
+            return current;
+        }
+        final long messageTime =
+                latest == null
+                        ? Math.max(getCreated(), getLastClearHistory().getTimestamp())
+                        : latestTime;
+        final long draftTimestamp = getLongAttribute(ATTRIBUTE_NEXT_MESSAGE_TIMESTAMP, 0);
+        final long sortableTime;
+        if (draftTimestamp > messageTime
+                && !TextUtils.isEmpty(getAttribute(ATTRIBUTE_NEXT_MESSAGE))) {
+            sortableTime = draftTimestamp;
         } else {
-            return Math.max(messageTime, draft.getTimestamp());
+            sortableTime = messageTime;
         }
+        final SortKey sortKey =
+                new SortKey(
+                        getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false),
+                        sortableTime,
+                        latest,
+                        latestTime,
+                        attributesVersion);
+        this.sortKey = sortKey;
+        return sortKey;
     }
 
     public String getDraftMessage() {
@@ -616,6 +750,12 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return unread.build();
     }
 
+    public Message getOldestMessage() {
+        synchronized (this.messages) {
+            return this.messages.isEmpty() ? null : this.messages.get(0);
+        }
+    }
+
     public Message getLatestMessage() {
         synchronized (this.messages) {
             if (this.messages.size() == 0) {
@@ -841,14 +981,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findRtpSession(final String sessionId, final int s) {
         synchronized (this.messages) {
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                final Message message = this.messages.get(i);
-                if ((message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION) && sessionId.equals(message.getRemoteMsgId())) {
-                    return message;
-                }
-            }
+            return MessageIndex.first(this.messages, messageIndex.withRemoteMsgId(sessionId), message -> (message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION), true);
         }
-        return null;
     }
 
     public boolean possibleDuplicate(final String serverMsgId, final String remoteMsgId) {
@@ -856,33 +990,34 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return false;
         }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
-                    return true;
-                }
-            }
+            return !messageIndex.withServerMsgId(serverMsgId).isEmpty() || !messageIndex.withRemoteMsgId(remoteMsgId).isEmpty();
         }
-        return false;
     }
 
     public MamReference getLastMessageTransmitted() {
         final MamReference lastClear = getLastClearHistory();
-        MamReference lastReceived = new MamReference(0);
+        final MamReference lastReceived;
         synchronized (this.messages) {
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                final Message message = this.messages.get(i);
-                if (message.isPrivateMessage()) {
-                    continue; //it's unsafe to use private messages as anchor. They could be coming from user archive
-                }
-                if (message.getStatus() == Message.STATUS_RECEIVED || message.isCarbon() || message.getServerMsgId() != null) {
-                    lastReceived = new MamReference(message.getTimeSent(), message.getServerMsgId());
-                    break;
-                }
-            }
+            final Message message = findLastMessageTransmitted();
+            lastReceived = message == null ? new MamReference(0) : new MamReference(message.getTimeSent(), message.getServerMsgId());
         }
         return MamReference.max(lastClear, lastReceived);
     }
 
+    // guarded by the lock on messages
+    private Message findLastMessageTransmitted() {
+        for (int i = this.messages.size() - 1; i >= 0; --i) {
+            final Message message = this.messages.get(i);
+            if (message.isPrivateMessage()) {
+                continue; //it's unsafe to use private messages as anchor. They could be coming from user archive
+            }
+            if (message.getStatus() == Message.STATUS_RECEIVED || message.isCarbon() || message.getServerMsgId() != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
     public void setMutedTill(long value) {
         this.setAttribute(ATTRIBUTE_MUTED_TILL, String.valueOf(value));
     }
@@ -913,6 +1048,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (value == null) {
                     if (this.attributes.has(key)) {
                         this.attributes.remove(key);
+                        ++this.attributesVersion;
                         return true;
                     } else {
                         return false;
@@ -920,7 +1056,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 } else {
                     final String prev = this.attributes.optString(key, null);
                     this.attributes.put(key, value);
-                    return !value.equals(prev);
+                    if (value.equals(prev)) {
+                        return false;
+                    }
+                    ++this.attributesVersion;
+                    return true;
                 }
             } catch (JSONException e) {
                 throw new AssertionError(e);
@@ -936,6 +1076,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         synchronized (this.attributes) {
             try {
                 this.attributes.put(key, array);
+                ++this.attributesVersion;
                 return true;
             } catch (JSONException e) {
                 return false;
@@ -1006,18 +1147,21 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void add(Message message) {
         synchronized (this.messages) {
             this.messages.add(message);
+            this.messageIndex.add(message);
         }
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
+            this.messageIndex.add(message);
         }
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
+            this.messageIndex.addAll(messages);
         }
         account.getPgpDecryptionService().decrypt(messages);
     }
@@ -1025,8 +1169,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void expireOldMessages(long timestamp) {
         synchronized (this.messages) {
             for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-                if (iterator.next().getTimeSent() < timestamp) {
+                final Message message = iterator.next();
+                if (message.getTimeSent() < timestamp) {
                     iterator.remove();
+                    this.messageIndex.remove(message);
                 }
             }
             untieMessages();
@@ -1145,6 +1291,38 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         void onMessageFound(final Message message);
     }
 
+    public static final class SortKey implements Comparable<SortKey> {
+        private final boolean pinned;
+        private final long time;
+
+        // what the key has been computed from
+        private final Message latest;
+        private final long latestTime;
+        private final int attributesVersion;
+
+        private SortKey(
+                final boolean pinned,
+                final long time,
+                final Message latest,
+                final long latestTime,
+                final int attributesVersion) {
+            this.pinned = pinned;
+            this.time = time;
+            this.latest = latest;
+            this.latestTime = latestTime;
+            this.attributesVersion = attributesVersion;
+        }
+
+        /** pinned conversations first, then the most recent activity first */
+        @Override
+        public int compareTo(@NonNull final SortKey another) {
+            if (pinned != another.pinned) {
+                return pinned ? -1 : 1;
+            }
+            return Long.compare(another.time, time);
+        }
+    }
+
     public static class Draft {
         private final String message;
         private final long timestamp;
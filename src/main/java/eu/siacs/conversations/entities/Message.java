@@ -423,7 +423,9 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setRemoteMsgId(String id) {
+        final String previous = this.remoteMsgId;
         this.remoteMsgId = id;
+        reindex(this.uuid, previous, this.serverMsgId);
     }
 
     public String getServerMsgId() {
@@ -431,7 +433,15 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setServerMsgId(String id) {
+        final String previous = this.serverMsgId;
         this.serverMsgId = id;
+        reindex(this.uuid, this.remoteMsgId, previous);
+    }
+
+    private void reindex(final String uuid, final String remoteMsgId, final String serverMsgId) {
+        if (this.conversation instanceof Conversation c) {
+            c.reindex(this, uuid, remoteMsgId, serverMsgId);
+        }
     }
 
     public boolean isRead() {
@@ -824,7 +834,9 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setUuid(String uuid) {
+        final String previous = this.uuid;
         this.uuid = uuid;
+        reindex(previous, this.remoteMsgId, this.serverMsgId);
     }
 
     public String getEditedId() {
@@ -0,0 +1,149 @@
+package eu.siacs.conversations.entities;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Secondary indexes (uuid, remote id, server id) over the messages of a {@link Conversation}.
+ * All methods must be called while holding the lock on the message list the index belongs to.
+ */
+class MessageIndex {
+
+    private final Set<Message> members = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final SetMultimap<String, Message> byUuid = HashMultimap.create();
+    private final SetMultimap<String, Message> byRemoteMsgId = HashMultimap.create();
+    private final SetMultimap<String, Message> byServerMsgId = HashMultimap.create();
+
+    void add(final Message message) {
+        if (members.add(message)) {
+            put(message, message.getUuid(), message.getRemoteMsgId(), message.getServerMsgId());
+        }
+    }
+
+    void addAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            add(message);
+        }
+    }
+
+    void remove(final Message message) {
+        if (members.remove(message)) {
+            take(message, message.getUuid(), message.getRemoteMsgId(), message.getServerMsgId());
+        }
+    }
+
+    void removeAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            remove(message);
+        }
+    }
+
+    void clear() {
+        members.clear();
+        byUuid.clear();
+        byRemoteMsgId.clear();
+        byServerMsgId.clear();
+    }
+
+    /** Moves a message that changed one of its ids. The previous ids are passed in. */
+    void reindex(
+            final Message message,
+            final String uuid,
+            final String remoteMsgId,
+            final String serverMsgId) {
+        if (members.contains(message)) {
+            take(message, uuid, remoteMsgId, serverMsgId);
+            put(message, message.getUuid(), message.getRemoteMsgId(), message.getServerMsgId());
+        }
+    }
+
+    Set<Message> withUuid(final String uuid) {
+        return uuid == null ? Collections.emptySet() : byUuid.get(uuid);
+    }
+
+    Set<Message> withRemoteMsgId(final String remoteMsgId) {
+        return remoteMsgId == null ? Collections.emptySet() : byRemoteMsgId.get(remoteMsgId);
+    }
+
+    Set<Message> withServerMsgId(final String serverMsgId) {
+        return serverMsgId == null ? Collections.emptySet() : byServerMsgId.get(serverMsgId);
+    }
+
+    Set<Message> withUuidOrRemoteMsgId(final String id) {
+        final Set<Message> byUuid = withUuid(id);
+        final Set<Message> byRemoteMsgId = withRemoteMsgId(id);
+        if (byRemoteMsgId.isEmpty()) {
+            return byUuid;
+        } else if (byUuid.isEmpty()) {
+            return byRemoteMsgId;
+        }
+        final Set<Message> union = Collections.newSetFromMap(new IdentityHashMap<>());
+        union.addAll(byUuid);
+        union.addAll(byRemoteMsgId);
+        return union;
+    }
+
+    /**
+     * Picks the first candidate that satisfies the predicate in the order of the message list
+     * (or the reverse order). The list is only consulted if there is more than one candidate.
+     */
+    static Message first(
+            final List<Message> messages,
+            final Set<Message> candidates,
+            final Predicate<Message> predicate,
+            final boolean reverse) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (candidates.size() == 1) {
+            final Message candidate = candidates.iterator().next();
+            return predicate.apply(candidate) ? candidate : null;
+        }
+        for (final Message message : reverse ? Lists.reverse(messages) : messages) {
+            if (candidates.contains(message) && predicate.apply(message)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private void put(
+            final Message message,
+            final String uuid,
+            final String remoteMsgId,
+            final String serverMsgId) {
+        if (uuid != null) {
+            byUuid.put(uuid, message);
+        }
+        if (remoteMsgId != null) {
+            byRemoteMsgId.put(remoteMsgId, message);
+        }
+        if (serverMsgId != null) {
+            byServerMsgId.put(serverMsgId, message);
+        }
+    }
+
+    private void take(
+            final Message message,
+            final String uuid,
+            final String remoteMsgId,
+            final String serverMsgId) {
+        if (uuid != null) {
+            byUuid.remove(uuid, message);
+        }
+        if (remoteMsgId != null) {
+            byRemoteMsgId.remove(remoteMsgId, message);
+        }
+        if (serverMsgId != null) {
+            byServerMsgId.remove(serverMsgId, message);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package eu.siacs.conversations.entities;
 
+import android.content.ContentValues;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -79,11 +81,30 @@ public class Roster {
 			return;
 		}
 		contact.setAccount(account);
+		contact.setPersistedContentValues(contact.getContentValues());
 		synchronized (this.contacts) {
 			contacts.put(contact.getJid().asBareJid(), contact);
 		}
 	}
 
+	/**
+	 * @return contacts whose in-memory state differs from what is stored in the database
+	 */
+	public List<Contact> getDirtyContacts() {
+		final List<Contact> dirty = new ArrayList<>();
+		for (final Contact contact : getContacts()) {
+			final ContentValues persisted = contact.getPersistedContentValues();
+			if (contact.isPersistable()) {
+				if (!contact.getContentValues().equals(persisted)) {
+					dirty.add(contact);
+				}
+			} else if (persisted != null) {
+				dirty.add(contact);
+			}
+		}
+		return dirty;
+	}
+
 	public void setVersion(String version) {
 		this.version = version;
 	}
@@ -0,0 +1,264 @@
+package eu.siacs.conversations.http;
+
+import android.util.Log;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.primitives.Longs;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.DownloadableFile;
+import eu.siacs.conversations.services.AbstractConnectionManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a file as a sequence of byte ranges that are fetched over several concurrent
+ * connections and assembled with positional writes into a preallocated file.
+ *
+ * <p>The download is started with a ranged request for the first chunk; if the server answers
+ * with 206 Partial Content that response is handed to {@link #run(Response)} and the remaining
+ * chunks are fetched in parallel. If the download fails the file is truncated to the contiguous
+ * prefix of completed chunks so that a later attempt can resume with a regular range request.
+ */
+class ChunkedDownload {
+
+    static final long CHUNK_SIZE = Config.HTTP_DOWNLOAD_CHUNK_SIZE;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    private final OkHttpClient client;
+    private final HttpUrl url;
+    private final DownloadableFile file;
+    private final long expected;
+    private final AbstractConnectionManager.ProgressListener progressListener;
+
+    private final AtomicInteger nextChunk = new AtomicInteger(1);
+    private final AtomicLong transmitted = new AtomicLong(0);
+    private final List<Call> calls = new ArrayList<>();
+    private boolean[] completed;
+    private long size;
+    private IOException failure = null;
+
+    ChunkedDownload(
+            final OkHttpClient client,
+            final HttpUrl url,
+            final DownloadableFile file,
+            final long expected,
+            final AbstractConnectionManager.ProgressListener progressListener) {
+        this.client = client;
+        this.url = url;
+        this.file = file;
+        this.expected = expected;
+        this.progressListener = progressListener;
+    }
+
+    static String firstRange() {
+        return String.format(Locale.ENGLISH, "bytes=0-%d", CHUNK_SIZE - 1);
+    }
+
+    void run(final Response first) throws IOException {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        this.size = getTotalSize(first);
+        if (size > expected) {
+            first.close();
+            throw new IOException(String.format("File exceeds expected size of %d", expected));
+        }
+        final int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        this.completed = new boolean[chunks];
+        final int parallelism = Math.max(1, Math.min(Config.HTTP_DOWNLOAD_PARALLELISM, chunks));
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(size);
+            final FileChannel channel = randomAccessFile.getChannel();
+            final CountDownLatch workers = new CountDownLatch(parallelism - 1);
+            for (int i = 1; i < parallelism; ++i) {
+                EXECUTOR.execute(
+                        () -> {
+                            try {
+                                work(channel);
+                            } finally {
+                                workers.countDown();
+                            }
+                        });
+            }
+            try {
+                receive(channel, 0, first);
+                work(channel);
+            } catch (final IOException e) {
+                fail(e);
+            }
+            try {
+                workers.await();
+            } catch (final InterruptedException e) {
+                fail(new InterruptedIOException("interrupted while waiting for chunks"));
+                workers.awaitUninterruptibly();
+            }
+            final IOException failure = getFailure();
+            if (failure != null) {
+                randomAccessFile.setLength(getCompletedPrefix());
+                throw failure;
+            }
+        }
+        final long elapsed = Math.max(1, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        Log.d(
+                Config.LOGTAG,
+                "downloaded "
+                        + size
+                        + " bytes in "
+                        + chunks
+                        + " chunks over "
+                        + parallelism
+                        + " connections in "
+                        + elapsed
+                        + "ms ("
+                        + (size * 1000 / 1024 / elapsed)
+                        + " KiB/s)");
+    }
+
+    void cancel() {
+        fail(new IOException("download has been cancelled"));
+    }
+
+    private void work(final FileChannel channel) {
+        while (getFailure() == null) {
+            final int chunk = nextChunk.getAndIncrement();
+            if (chunk >= completed.length) {
+                return;
+            }
+            try {
+                fetch(channel, chunk);
+            } catch (final IOException e) {
+                fail(e);
+                return;
+            }
+        }
+    }
+
+    private void fetch(final FileChannel channel, final int chunk) throws IOException {
+        final long start = chunk * CHUNK_SIZE;
+        final long end = Math.min(start + CHUNK_SIZE, size) - 1;
+        final Request request =
+                new Request.Builder()
+                        .url(url)
+                        .addHeader(
+                                "Range", String.format(Locale.ENGLISH, "bytes=%d-%d", start, end))
+                        .build();
+        final Call call = client.newCall(request);
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("download has been aborted");
+            }
+            calls.add(call);
+        }
+        try {
+            final Response response = call.execute();
+            receive(channel, chunk, response);
+        } finally {
+            synchronized (this) {
+                calls.remove(call);
+            }
+        }
+    }
+
+    private void receive(final FileChannel channel, final int chunk, final Response response)
+            throws IOException {
+        final long start = chunk * CHUNK_SIZE;
+        final long end = Math.min(start + CHUNK_SIZE, size) - 1;
+        try (final ResponseBody body = response.body()) {
+            final String contentRange = response.header("Content-Range");
+            final String expectedRange = String.format(Locale.ENGLISH, "bytes %d-%d/", start, end);
+            if (response.code() != 206
+                    || contentRange == null
+                    || !contentRange.startsWith(expectedRange)) {
+                throw new IOException(
+                        String.format(
+                                Locale.ENGLISH,
+                                "unexpected response for range %d-%d (code=%d, Content-Range=%s)",
+                                start,
+                                end,
+                                response.code(),
+                                contentRange));
+            }
+            if (body == null) {
+                throw new IOException("no response body found");
+            }
+            final InputStream inputStream = body.byteStream();
+            final byte[] buffer = new byte[16384];
+            long position = start;
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                if (position + count > end + 1) {
+                    throw new IOException("server sent more than the requested range");
+                }
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+                progressListener.onProgress(transmitted.addAndGet(count));
+            }
+            if (position != end + 1) {
+                throw new IOException("server sent less than the requested range");
+            }
+        }
+        synchronized (this) {
+            completed[chunk] = true;
+        }
+    }
+
+    private void fail(final IOException e) {
+        final List<Call> calls;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = e;
+            calls = new ArrayList<>(this.calls);
+        }
+        for (final Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    private synchronized IOException getFailure() {
+        return failure;
+    }
+
+    private synchronized long getCompletedPrefix() {
+        int chunks = 0;
+        while (chunks < completed.length && completed[chunks]) {
+            ++chunks;
+        }
+        return Math.min(chunks * CHUNK_SIZE, size);
+    }
+
+    private static long getTotalSize(final Response response) throws IOException {
+        final String contentRange = response.header("Content-Range");
+        final int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        final Long total = slash < 0 ? null : Longs.tryParse(contentRange.substring(slash + 1));
+        if (total == null || total <= 0) {
+            response.close();
+            throw new IOException("server did not report total size in Content-Range");
+        }
+        return total;
+    }
+}
@@ -13,6 +13,7 @@ import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.services.AbstractConnectionManager;
 import eu.siacs.conversations.services.XmppConnectionService;
+import eu.siacs.conversations.utils.SSLContextCache;
 import eu.siacs.conversations.utils.TLSSocketFactory;
 
 import okhttp3.HttpUrl;
@@ -38,6 +39,8 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509TrustManager;
 
@@ -50,6 +53,13 @@ public class HttpConnectionManager extends AbstractConnectionManager {
 
     private static final OkHttpClient OK_HTTP_CLIENT;
 
+    private static final HostnameVerifier HOSTNAME_VERIFIER = new StrictHostnameVerifier();
+
+    // indexed by interactive; shared so that OkHttp can pool connections and resume TLS sessions
+    private final X509TrustManager[] trustManagers = new X509TrustManager[2];
+    private final SSLContext[] sslContexts = new SSLContext[2];
+    private final SSLSocketFactory[] sslSocketFactories = new SSLSocketFactory[2];
+
     static {
         OK_HTTP_CLIENT = new OkHttpClient.Builder()
                 .addInterceptor(chain -> {
@@ -146,17 +156,25 @@ public class HttpConnectionManager extends AbstractConnectionManager {
         return builder.build();
     }
 
-    private void setupTrustManager(final OkHttpClient.Builder builder, final boolean interactive) {
-        final X509TrustManager trustManager;
-        if (interactive) {
-            trustManager = mXmppConnectionService.getMemorizingTrustManager().getInteractive();
-        } else {
-            trustManager = mXmppConnectionService.getMemorizingTrustManager().getNonInteractive();
+    private synchronized void setupTrustManager(final OkHttpClient.Builder builder, final boolean interactive) {
+        final int mode = interactive ? 1 : 0;
+        if (trustManagers[mode] == null) {
+            if (interactive) {
+                trustManagers[mode] = mXmppConnectionService.getMemorizingTrustManager().getInteractive();
+            } else {
+                trustManagers[mode] = mXmppConnectionService.getMemorizingTrustManager().getNonInteractive();
+            }
         }
+        final X509TrustManager trustManager = trustManagers[mode];
         try {
-            final SSLSocketFactory sf = new TLSSocketFactory(new X509TrustManager[]{trustManager}, SECURE_RANDOM);
-            builder.sslSocketFactory(sf, trustManager);
-            builder.hostnameVerifier(new StrictHostnameVerifier());
+            final SSLContext sslContext = SSLContextCache.get(null, null, interactive, null, null, trustManager);
+            if (sslContext != sslContexts[mode]) {
+                // the cache has been invalidated
+                sslContexts[mode] = sslContext;
+                sslSocketFactories[mode] = new TLSSocketFactory(sslContext);
+            }
+            builder.sslSocketFactory(sslSocketFactories[mode], trustManager);
+            builder.hostnameVerifier(HOSTNAME_VERIFIER);
         } catch (final KeyManagementException | NoSuchAlgorithmException ignored) {
         }
     }
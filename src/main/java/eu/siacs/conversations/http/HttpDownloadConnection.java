@@ -5,10 +5,10 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import com.google.common.base.Strings;
-import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Longs;
 
-import java.io.FileInputStream;
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -46,6 +46,7 @@ public class HttpDownloadConnection implements Transferable {
     private boolean acceptedAutomatically = false;
     private int mProgress = 0;
     private Call mostRecentCall;
+    private volatile ChunkedDownload chunkedDownload;
 
     HttpDownloadConnection(Message message, HttpConnectionManager manager) {
         this.message = message;
@@ -127,9 +128,9 @@ public class HttpDownloadConnection implements Transferable {
     private void setupFile() {
         final String reference = mUrl.fragment();
         if (reference != null && AesGcmURL.IV_KEY.matcher(reference).matches()) {
-            this.file = new DownloadableFile(mXmppConnectionService.getCacheDir(), message.getUuid());
+            this.file = mXmppConnectionService.getFileBackend().getFile(message, true);
             this.file.setKeyAndIv(CryptoHelper.hexToBytes(reference));
-            Log.d(Config.LOGTAG, "create temporary OMEMO encrypted file: " + this.file.getAbsolutePath() + "(" + message.getMimeType() + ")");
+            Log.d(Config.LOGTAG, "decrypting OMEMO encrypted file while downloading to: " + this.file.getAbsolutePath() + "(" + message.getMimeType() + ")");
         } else {
             this.file = mXmppConnectionService.getFileBackend().getFile(message, false);
         }
@@ -149,6 +150,10 @@ public class HttpDownloadConnection implements Transferable {
         if (call != null && !call.isCanceled()) {
             call.cancel();
         }
+        final ChunkedDownload chunkedDownload = this.chunkedDownload;
+        if (chunkedDownload != null) {
+            chunkedDownload.cancel();
+        }
         mHttpConnectionManager.finishConnection(this);
         message.setTransferable(null);
         if (message.isFileOrImage()) {
@@ -157,33 +162,6 @@ public class HttpDownloadConnection implements Transferable {
         mHttpConnectionManager.updateConversationUi(true);
     }
 
-    private void decryptFile() throws IOException {
-        final DownloadableFile outputFile = mXmppConnectionService.getFileBackend().getFile(message, true);
-
-        if (outputFile.getParentFile().mkdirs()) {
-            Log.d(Config.LOGTAG, "created parent directories for " + outputFile.getAbsolutePath());
-        }
-
-        if (!outputFile.createNewFile()) {
-            Log.w(Config.LOGTAG, "unable to create output file " + outputFile.getAbsolutePath());
-        }
-
-        final InputStream is = new FileInputStream(this.file);
-
-        outputFile.setKey(this.file.getKey());
-        outputFile.setIv(this.file.getIv());
-        final OutputStream os = AbstractConnectionManager.createOutputStream(outputFile, false, true);
-
-        ByteStreams.copy(is, os);
-
-        FileBackend.close(is);
-        FileBackend.close(os);
-
-        if (!file.delete()) {
-            Log.w(Config.LOGTAG, "unable to delete temporary OMEMO encrypted file " + file.getAbsolutePath());
-        }
-    }
-
     private void finish() {
         message.setTransferable(null);
         mHttpConnectionManager.finishConnection(this);
@@ -201,12 +179,6 @@ public class HttpDownloadConnection implements Transferable {
         });
     }
 
-    private void decryptIfNeeded() throws IOException {
-        if (file.getKey() != null && file.getIv() != null) {
-            decryptFile();
-        }
-    }
-
     private void changeStatus(int status) {
         this.mStatus = status;
         mHttpConnectionManager.updateConversationUi(true);
@@ -370,7 +342,6 @@ public class HttpDownloadConnection implements Transferable {
             try {
                 changeStatus(STATUS_DOWNLOADING);
                 download();
-                decryptIfNeeded();
                 updateImageBounds();
                 finish();
             } catch (final SSLHandshakeException e) {
@@ -397,19 +368,50 @@ public class HttpDownloadConnection implements Transferable {
             final Request.Builder requestBuilder = new Request.Builder().url(URL.stripFragment(mUrl));
 
             final long expected = file.getExpectedSize();
-            final boolean tryResume = file.exists() && file.getSize() > 0 && file.getSize() < expected;
+            final boolean decrypt = file.getKey() != null && file.getIv() != null;
+            final AbstractConnectionManager.DecryptionResumption decryptionResumption;
             final long resumeSize;
+            if (file.exists() && file.getSize() > 0 && file.getSize() < expected) {
+                if (decrypt) {
+                    decryptionResumption = AbstractConnectionManager.resumeDecryption(file);
+                    resumeSize = decryptionResumption.offset;
+                } else {
+                    decryptionResumption = null;
+                    resumeSize = file.getSize();
+                }
+            } else {
+                decryptionResumption = null;
+                resumeSize = 0;
+            }
+            final boolean tryResume = resumeSize > 0;
+            final boolean tryChunked = !tryResume && !decrypt && expected >= Config.HTTP_DOWNLOAD_CHUNKED_MIN_SIZE;
             if (tryResume) {
-                resumeSize = file.getSize();
                 Log.d(Config.LOGTAG, "http download trying resume after " + resumeSize + " of " + expected);
                 requestBuilder.addHeader("Range", String.format(Locale.ENGLISH, "bytes=%d-", resumeSize));
-            } else {
-                resumeSize = 0;
+            } else if (tryChunked) {
+                requestBuilder.addHeader("Range", ChunkedDownload.firstRange());
             }
             final Request request = requestBuilder.build();
             mostRecentCall = client.newCall(request);
             final Response response = mostRecentCall.execute();
             throwOnInvalidCode(response);
+            if (tryChunked && response.code() == 206) {
+                Log.d(Config.LOGTAG, "server supports range requests. downloading in chunks");
+                file.getParentFile().mkdirs();
+                chunkedDownload = new ChunkedDownload(
+                        client,
+                        URL.stripFragment(mUrl),
+                        file,
+                        expected,
+                        progress -> updateProgress(Math.round(((double) progress / expected) * 100))
+                );
+                try {
+                    chunkedDownload.run(response);
+                } finally {
+                    chunkedDownload = null;
+                }
+                return;
+            }
             final String contentRange = response.header("Content-Range");
             final boolean serverResumed = tryResume && contentRange != null && contentRange.startsWith("bytes " + resumeSize + "-");
             final InputStream inputStream = response.body().byteStream();
@@ -417,9 +419,13 @@ public class HttpDownloadConnection implements Transferable {
             long transmitted = 0;
             if (tryResume && serverResumed) {
                 Log.d(Config.LOGTAG, "server resumed");
-                transmitted = file.getSize();
+                transmitted = resumeSize;
                 updateProgress(Math.round(((double) transmitted / expected) * 100));
-                outputStream = AbstractConnectionManager.createOutputStream(file, true, false);
+                if (decryptionResumption != null) {
+                    outputStream = decryptionResumption.createOutputStream(file);
+                } else {
+                    outputStream = AbstractConnectionManager.createOutputStream(file, true, false);
+                }
             } else {
                 final String contentLength = response.header("Content-Length");
                 final long size = Strings.isNullOrEmpty(contentLength) ? 0 : Longs.tryParse(contentLength);
@@ -431,23 +437,41 @@ public class HttpDownloadConnection implements Transferable {
                 if (!file.exists() && !file.createNewFile()) {
                     throw new FileWriterException(file);
                 }
-                outputStream = AbstractConnectionManager.createOutputStream(file, false, false);
+                outputStream = AbstractConnectionManager.createOutputStream(file, false, decrypt);
             }
-            int count;
-            final byte[] buffer = new byte[4096];
-            while ((count = inputStream.read(buffer)) != -1) {
-                transmitted += count;
-                try {
-                    outputStream.write(buffer, 0, count);
-                } catch (final IOException e) {
-                    throw new FileWriterException(file);
+            if (outputStream == null) {
+                throw new FileWriterException(file);
+            }
+            try {
+                int count;
+                final byte[] buffer = new byte[4096];
+                while ((count = inputStream.read(buffer)) != -1) {
+                    transmitted += count;
+                    try {
+                        outputStream.write(buffer, 0, count);
+                    } catch (final IOException e) {
+                        throw new FileWriterException(file);
+                    }
+                    if (transmitted > expected) {
+                        throw new InvalidFileException(String.format("File exceeds expected size of %d", expected));
+                    }
+                    updateProgress(Math.round(((double) transmitted / expected) * 100));
                 }
-                if (transmitted > expected) {
-                    throw new InvalidFileException(String.format("File exceeds expected size of %d", expected));
+            } catch (final IOException | FileWriterException e) {
+                // keeps what has been written so far around for resumption
+                FileBackend.close(outputStream);
+                throw e;
+            }
+            try {
+                outputStream.close();
+            } catch (final InvalidCipherTextIOException e) {
+                if (!file.delete()) {
+                    Log.w(Config.LOGTAG, "unable to delete unauthenticated file " + file.getAbsolutePath());
                 }
-                updateProgress(Math.round(((double) transmitted / expected) * 100));
+                throw new InvalidFileException("Authentication tag did not match");
+            } catch (final IOException e) {
+                throw new FileWriterException(file);
             }
-            outputStream.flush();
         }
 
         private void updateImageBounds() {
@@ -623,7 +623,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                         mXmppConnectionService.updateConversationUi();
                     }
                     if (query != null && status == Message.STATUS_SEND && remoteMsgId != null) {
-                        Message previouslySent = conversation.findSentMessageWithUuid(remoteMsgId);
+                        Message previouslySent = mXmppConnectionService.findSentMessageWithUuid(conversation, remoteMsgId);
                         if (previouslySent != null && previouslySent.getServerMsgId() == null && serverMsgId != null) {
                             previouslySent.setServerMsgId(serverMsgId);
                             mXmppConnectionService.databaseBackend.updateMessage(previouslySent, false);
@@ -693,7 +693,8 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
             }
 
             if (replacementId != null && mXmppConnectionService.allowMessageCorrection()) {
-                final Message replacedMessage = conversation.findMessageWithRemoteIdAndCounterpart(replacementId,
+                final Message replacedMessage = mXmppConnectionService.findMessageWithRemoteIdAndCounterpart(conversation,
+                        replacementId,
                         counterpart,
                         message.getStatus() == Message.STATUS_RECEIVED,
                         message.isCarbon());
@@ -726,6 +727,10 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                             }
                             extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet);
                             mXmppConnectionService.updateMessage(replacedMessage, uuid);
+                            if (conversation.isSummaryOnly() && replacedMessage.getStatus() == Message.STATUS_RECEIVED) {
+                                // the corrected message is unread again; the summary has no room for that
+                                mXmppConnectionService.loadSummarizedMessages(conversation);
+                            }
                             if (mXmppConnectionService.confirmMessages()
                                     && replacedMessage.getStatus() == Message.STATUS_RECEIVED
                                     && (replacedMessage.trusted() || replacedMessage.isPrivateMessage()) //TODO do we really want to send receipts for all PMs?
@@ -1071,7 +1076,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                 final Conversation c =
                         mXmppConnectionService.find(account, counterpart.asBareJid());
                 final Message message =
-                        (c == null || id == null) ? null : c.findReceivedWithRemoteId(id);
+                        (c == null || id == null) ? null : mXmppConnectionService.findReceivedWithRemoteId(c, id);
                 if (message != null && (query == null || query.isCatchup())) {
                     mXmppConnectionService.markReadUpTo(c, message);
                 }
@@ -1085,7 +1090,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                     if (sender != null) {
                         message = conversation.findMessageWithRemoteId(id, sender);
                     } else {
-                        message = conversation.findMessageWithServerMsgId(id);
+                        message = mXmppConnectionService.findMessageWithServerMsgId(conversation, id);
                     }
                 } else {
                     message = null;
@@ -11,6 +11,7 @@ import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
 
 import org.json.JSONException;
@@ -31,6 +32,8 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -38,11 +41,15 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.crypto.axolotl.AxolotlService;
 import eu.siacs.conversations.crypto.axolotl.FingerprintStatus;
 import eu.siacs.conversations.crypto.axolotl.SQLiteAxolotlStore;
+import eu.siacs.conversations.crypto.sasl.ScramKeys;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
@@ -64,10 +71,12 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 52;
+    private static final int DATABASE_VERSION = 58;
 
     private static boolean requiresMessageIndexRebuild = false;
     private static DatabaseBackend instance = null;
+
+    private final MessageUpdateJournal messageUpdateJournal = new MessageUpdateJournal(this);
     private static final String CREATE_CONTATCS_STATEMENT = "create table "
             + Contact.TABLENAME + "(" + Contact.ACCOUNT + " TEXT, "
             + Contact.SERVERNAME + " TEXT, " + Contact.SYSTEMNAME + " TEXT,"
@@ -165,13 +174,52 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + Resolver.Result.DIRECT_TLS + " NUMBER,"
             + Resolver.Result.AUTHENTICATED + " NUMBER,"
             + Resolver.Result.PORT + " NUMBER,"
-            + "UNIQUE(" + Resolver.Result.DOMAIN + ") ON CONFLICT REPLACE"
+            + Resolver.Result.CANDIDATE + " TEXT,"
+            + Resolver.Result.LATENCY + " NUMBER,"
+            + Resolver.Result.LAST_SUCCESS + " NUMBER,"
+            + Resolver.Result.EXPIRES + " NUMBER,"
+            + "UNIQUE(" + Resolver.Result.DOMAIN + "," + Resolver.Result.CANDIDATE + ") ON CONFLICT REPLACE"
+            + ");";
+
+    private static final String CREATE_SCRAM_KEYS_STATEMENT = "CREATE TABLE "
+            + ScramKeys.TABLENAME + "("
+            + ScramKeys.ACCOUNT + " TEXT, "
+            + ScramKeys.MECHANISM + " TEXT, "
+            + ScramKeys.SALT + " TEXT, "
+            + ScramKeys.ITERATIONS + " NUMBER, "
+            + ScramKeys.PASSWORD_HASH + " TEXT, "
+            + ScramKeys.CLIENT_KEY + " TEXT, "
+            + ScramKeys.SERVER_KEY + " TEXT, FOREIGN KEY("
+            + ScramKeys.ACCOUNT
+            + ") REFERENCES " + Account.TABLENAME + "(" + Account.UUID + ") ON DELETE CASCADE, "
+            + "UNIQUE(" + ScramKeys.ACCOUNT + ", "
+            + ScramKeys.MECHANISM
+            + ") ON CONFLICT REPLACE"
             + ");";
 
+    private static final String[] MESSAGE_COLUMNS = {
+            Message.UUID, Message.CONVERSATION, Message.COUNTERPART, Message.TRUE_COUNTERPART,
+            Message.BODY, Message.TIME_SENT, Message.ENCRYPTION, Message.STATUS, Message.TYPE,
+            Message.CARBON, Message.REMOTE_MSG_ID, Message.RELATIVE_FILE_PATH,
+            Message.SERVER_MSG_ID, Message.FINGERPRINT, Message.READ, Message.EDITED, Message.OOB,
+            Message.ERROR_MESSAGE, Message.READ_BY_MARKERS, Message.MARKABLE, Message.DELETED,
+            Message.BODY_LANGUAGE, Message.OCCUPANT_ID, Message.REACTIONS
+    };
+
     private static final String CREATE_MESSAGE_TIME_INDEX = "CREATE INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_CONVERSATION_INDEX = "CREATE INDEX message_conversation_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ")";
     private static final String CREATE_MESSAGE_DELETED_INDEX = "CREATE INDEX message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
     private static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "CREATE INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
+    private static final String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "CREATE INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ")";
+    private static final String CREATE_MESSAGE_SERVER_MSG_ID_INDEX = "CREATE INDEX message_server_msg_id_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.SERVER_MSG_ID + ")";
+    private static final String CREATE_MESSAGE_REMOTE_MSG_ID_INDEX = "CREATE INDEX message_remote_msg_id_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.REMOTE_MSG_ID + ")";
+    private static final String CREATE_MESSAGE_FINGERPRINT_INDEX = "CREATE INDEX message_fingerprint_index ON " + Message.TABLENAME + "(" + Message.FINGERPRINT + "," + Message.TIME_SENT + ")";
+    // covers the filter of getLastMessageReceived() so that it does not have to read the rows
+    private static final String CREATE_MESSAGE_RECEIVED_INDEX = "CREATE INDEX message_received_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + "," + Message.STATUS + "," + Message.CARBON + "," + Message.TYPE + "," + Message.SERVER_MSG_ID + ")";
+    // partial indexes that let getConversationSummaries() count without reading every message
+    private static final String CREATE_MESSAGE_UNREAD_INDEX = "CREATE INDEX message_unread_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ") WHERE " + Message.READ + "=0";
+    private static final String CREATE_MESSAGE_PENDING_INDEX = "CREATE INDEX message_pending_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ") WHERE " + Message.STATUS + " IN (" + Message.STATUS_UNSEND + "," + Message.STATUS_WAITING + ")";
+    private static final String CREATE_CONVERSATION_ACCOUNT_INDEX = "CREATE INDEX conversation_account_index ON " + Conversation.TABLENAME + "(" + Conversation.ACCOUNT + ")";
     private static final String CREATE_MESSAGE_TYPE_INDEX = "CREATE INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
 
     private static final String CREATE_MESSAGE_INDEX_TABLE = "CREATE VIRTUAL TABLE messages_index USING fts4 (uuid,body,notindexed=\"uuid\",content=\"" + Message.TABLENAME + "\",tokenize='unicode61')";
@@ -180,8 +228,27 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     private static final String CREATE_MESSAGE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete AFTER DELETE ON " + Message.TABLENAME + " BEGIN DELETE FROM messages_index WHERE rowid=OLD.rowid; END;";
     private static final String COPY_PREEXISTING_ENTRIES = "INSERT INTO messages_index(messages_index) VALUES('rebuild');";
 
+    private final ScheduledExecutorService checkpointExecutor = Executors.newSingleThreadScheduledExecutor();
+
     private DatabaseBackend(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // readers get their own connections from the pool and no longer wait for writers
+        setWriteAheadLoggingEnabled(true);
+        checkpointExecutor.scheduleWithFixedDelay(this::checkpoint, Config.DATABASE_CHECKPOINT_INTERVAL, Config.DATABASE_CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Copies the write-ahead log back into the database without waiting for readers, so that the
+     * log does not grow between the automatic checkpoints during long bursts of writes.
+     */
+    private void checkpoint() {
+        try (final Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null)) {
+            if (cursor.moveToFirst() && cursor.getInt(1) > 0) {
+                Log.d(Config.LOGTAG, "checkpointed " + cursor.getInt(2) + " of " + cursor.getInt(1) + " pages of the write-ahead log");
+            }
+        } catch (final RuntimeException e) {
+            Log.d(Config.LOGTAG, "unable to checkpoint write-ahead log", e);
+        }
     }
 
     private static ContentValues createFingerprintStatusContentValues(FingerprintStatus.Trust trust, boolean active) {
@@ -213,6 +280,13 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     public void onConfigure(SQLiteDatabase db) {
         db.execSQL("PRAGMA foreign_keys=ON");
         db.rawQuery("PRAGMA secure_delete=ON", null).close();
+        // with write-ahead logging NORMAL may lose the latest commits on power loss but never
+        // corrupts the database
+        db.execSQL("PRAGMA synchronous=NORMAL");
+        db.execSQL("PRAGMA cache_size=-" + Config.DATABASE_CACHE_SIZE);
+        try (final Cursor cursor = db.rawQuery("PRAGMA mmap_size=" + Config.DATABASE_MMAP_SIZE, null)) {
+            cursor.moveToFirst();
+        }
     }
 
     @Override
@@ -269,7 +343,14 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 + Conversation.TABLENAME + "(" + Conversation.UUID
                 + ") ON DELETE CASCADE);");
         db.execSQL(CREATE_MESSAGE_TIME_INDEX);
-        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+        db.execSQL(CREATE_MESSAGE_SERVER_MSG_ID_INDEX);
+        db.execSQL(CREATE_MESSAGE_REMOTE_MSG_ID_INDEX);
+        db.execSQL(CREATE_MESSAGE_FINGERPRINT_INDEX);
+        db.execSQL(CREATE_MESSAGE_RECEIVED_INDEX);
+        db.execSQL(CREATE_CONVERSATION_ACCOUNT_INDEX);
+        db.execSQL(CREATE_MESSAGE_UNREAD_INDEX);
+        db.execSQL(CREATE_MESSAGE_PENDING_INDEX);
         db.execSQL(CREATE_MESSAGE_DELETED_INDEX);
         db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
         db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
@@ -281,6 +362,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.execSQL(CREATE_IDENTITIES_STATEMENT);
         db.execSQL(CREATE_PRESENCE_TEMPLATES_STATEMENT);
         db.execSQL(CREATE_RESOLVER_RESULTS_TABLE);
+        db.execSQL(CREATE_SCRAM_KEYS_STATEMENT);
         db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
         db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
         db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
@@ -607,6 +689,34 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE " + Message.TABLENAME + " ADD COLUMN " + Message.OCCUPANT_ID + " TEXT");
             db.execSQL("ALTER TABLE " + Message.TABLENAME + " ADD COLUMN " + Message.REACTIONS + " TEXT");
         }
+        if (oldVersion < 53 && newVersion >= 53) {
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+        }
+        if (oldVersion < 54 && newVersion >= 54) {
+            // (conversationUuid, timeSent) serves every lookup the single column index did
+            db.execSQL("DROP INDEX IF EXISTS message_conversation_index");
+            db.execSQL(CREATE_MESSAGE_SERVER_MSG_ID_INDEX);
+            db.execSQL(CREATE_MESSAGE_REMOTE_MSG_ID_INDEX);
+            db.execSQL(CREATE_MESSAGE_FINGERPRINT_INDEX);
+            db.execSQL(CREATE_MESSAGE_RECEIVED_INDEX);
+            db.execSQL(CREATE_CONVERSATION_ACCOUNT_INDEX);
+        }
+        if (oldVersion < 55 && newVersion >= 55) {
+            db.execSQL(CREATE_MESSAGE_UNREAD_INDEX);
+            db.execSQL(CREATE_MESSAGE_PENDING_INDEX);
+        }
+        if (oldVersion < 56 && newVersion >= 56) {
+            // the table only caches the last working result; it now keeps one row per candidate
+            db.execSQL("DROP TABLE IF EXISTS " + RESOLVER_RESULTS_TABLENAME);
+            db.execSQL(CREATE_RESOLVER_RESULTS_TABLE);
+        }
+        // older versions have just recreated the table including the column
+        if (oldVersion < 57 && newVersion >= 57 && oldVersion >= 56) {
+            db.execSQL("ALTER TABLE " + RESOLVER_RESULTS_TABLENAME + " ADD COLUMN " + Resolver.Result.EXPIRES + " NUMBER");
+        }
+        if (oldVersion < 58 && newVersion >= 58) {
+            db.execSQL(CREATE_SCRAM_KEYS_STATEMENT);
+        }
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -729,18 +839,93 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return result;
     }
 
-    public void saveResolverResult(String domain, Resolver.Result result) {
+    /**
+     * Remembers a result that has been connected to together with the time the TCP and TLS
+     * handshake took.
+     */
+    public void saveResolverResult(String domain, Resolver.Result result, long latency) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues contentValues = result.toContentValues();
-        contentValues.put(Resolver.Result.DOMAIN, domain);
-        db.insert(RESOLVER_RESULTS_TABLENAME, null, contentValues);
+        contentValues.put(Resolver.Result.LATENCY, latency);
+        contentValues.put(Resolver.Result.LAST_SUCCESS, System.currentTimeMillis());
+        // keeps the expiry in case the row is part of the cached DNS results
+        upsertResolverResult(db, domain, result, contentValues);
+    }
+
+    /**
+     * Replaces the cached DNS results of the domain. Connection statistics of the candidates are
+     * kept; rows that are neither cached nor have been connected to are removed.
+     */
+    public void saveResolverResults(final String domain, final List<Resolver.Result> results) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final String[] whereArgs = {domain};
+        db.beginTransaction();
+        try {
+            final ContentValues expired = new ContentValues();
+            expired.putNull(Resolver.Result.EXPIRES);
+            db.update(RESOLVER_RESULTS_TABLENAME, expired, Resolver.Result.DOMAIN + "=?", whereArgs);
+            for (final Resolver.Result result : results) {
+                final ContentValues contentValues = result.toContentValues();
+                contentValues.put(Resolver.Result.EXPIRES, result.getExpires());
+                upsertResolverResult(db, domain, result, contentValues);
+            }
+            db.delete(RESOLVER_RESULTS_TABLENAME, Resolver.Result.DOMAIN + "=? and " + Resolver.Result.EXPIRES + " is null and " + Resolver.Result.LAST_SUCCESS + " is null", whereArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void upsertResolverResult(final SQLiteDatabase db, final String domain, final Resolver.Result result, final ContentValues contentValues) {
+        final String where = Resolver.Result.DOMAIN + "=? and " + Resolver.Result.CANDIDATE + "=?";
+        final String[] whereArgs = {domain, result.getCandidate()};
+        if (db.update(RESOLVER_RESULTS_TABLENAME, contentValues, where, whereArgs) == 0) {
+            contentValues.put(Resolver.Result.DOMAIN, domain);
+            db.insert(RESOLVER_RESULTS_TABLENAME, null, contentValues);
+        }
+    }
+
+    /**
+     * @return the DNS results of the domain as they have been cached by {@link #saveResolverResults(String, List)}
+     */
+    public List<Resolver.Result> findCachedResolverResults(final String domain) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String where = Resolver.Result.DOMAIN + "=? and " + Resolver.Result.EXPIRES + " is not null";
+        final String[] whereArgs = {domain};
+        final List<Resolver.Result> results = new ArrayList<>();
+        try (final Cursor cursor = db.query(RESOLVER_RESULTS_TABLENAME, null, where, whereArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                results.add(Resolver.Result.fromCursor(cursor));
+            }
+        } catch (final Exception e) {
+            Log.d(Config.LOGTAG, "unable to find cached resolver results in database " + e.getMessage());
+        }
+        return results;
+    }
+
+    public List<Resolver.Result> findResolverResults(final String domain) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String where = Resolver.Result.DOMAIN + "=?";
+        final String[] whereArgs = {domain};
+        final List<Resolver.Result> results = new ArrayList<>();
+        try (final Cursor cursor = db.query(RESOLVER_RESULTS_TABLENAME, null, where, whereArgs, null, null, Resolver.Result.LATENCY)) {
+            while (cursor.moveToNext()) {
+                results.add(Resolver.Result.fromCursor(cursor));
+            }
+        } catch (final Exception e) {
+            Log.d(Config.LOGTAG, "unable to find cached resolver results in database " + e.getMessage());
+        }
+        return results;
     }
 
+    /**
+     * @return the result that has most recently been connected to
+     */
     public synchronized Resolver.Result findResolverResult(String domain) {
         SQLiteDatabase db = this.getReadableDatabase();
-        String where = Resolver.Result.DOMAIN + "=?";
+        String where = Resolver.Result.DOMAIN + "=? and " + Resolver.Result.LAST_SUCCESS + " is not null";
         String[] whereArgs = {domain};
-        final Cursor cursor = db.query(RESOLVER_RESULTS_TABLENAME, null, where, whereArgs, null, null, null);
+        final Cursor cursor = db.query(RESOLVER_RESULTS_TABLENAME, null, where, whereArgs, null, null, Resolver.Result.LAST_SUCCESS + " DESC", "1");
         Resolver.Result result = null;
         if (cursor != null) {
             try {
@@ -757,6 +942,28 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return result;
     }
 
+    /**
+     * @return the keys previously derived for exactly these parameters or null
+     */
+    public ScramKeys findScramKeys(final String account, final String mechanism, final String salt, final int iterations, final String passwordHash) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String where = ScramKeys.ACCOUNT + "=? and " + ScramKeys.MECHANISM + "=? and " + ScramKeys.SALT + "=? and " + ScramKeys.ITERATIONS + "=? and " + ScramKeys.PASSWORD_HASH + "=?";
+        final String[] whereArgs = {account, mechanism, salt, String.valueOf(iterations), passwordHash};
+        try (final Cursor cursor = db.query(ScramKeys.TABLENAME, null, where, whereArgs, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                return ScramKeys.fromCursor(cursor);
+            }
+        } catch (final Exception e) {
+            Log.d(Config.LOGTAG, "unable to find SCRAM keys in database " + e.getMessage());
+        }
+        return null;
+    }
+
+    public void saveScramKeys(final String account, final ScramKeys keys) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.insert(ScramKeys.TABLENAME, null, keys.toContentValues(account));
+    }
+
     public void insertPresenceTemplate(PresenceTemplate template) {
         SQLiteDatabase db = this.getWritableDatabase();
         String whereToDelete = PresenceTemplate.MESSAGE + "=?";
@@ -795,36 +1002,68 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    /**
+     * @return the time of the latest message of each conversation with the given status, keyed by
+     * conversation uuid
+     */
+    public Map<String, Long> getLastMessageTimes(final int status) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String sql = "select " + Conversation.UUID + ",(select max(" + Message.TIME_SENT + ") from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=" + Conversation.TABLENAME + "." + Conversation.UUID + ") from " + Conversation.TABLENAME + " where " + Conversation.STATUS + "=?";
+        final Map<String, Long> times = new HashMap<>();
+        try (final Cursor cursor = db.rawQuery(sql, new String[]{Integer.toString(status)})) {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(1)) {
+                    times.put(cursor.getString(0), cursor.getLong(1));
+                }
+            }
+        }
+        return times;
+    }
+
     public ArrayList<Message> getMessages(Conversation conversations, int limit) {
         return getMessages(conversations, limit, -1);
     }
 
     public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp) {
-        ArrayList<Message> list = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor;
+        return getMessages(conversation, limit, timestamp, null);
+    }
+
+    /**
+     * Loads a page of messages older than the given position. The position is the time of the
+     * oldest message already loaded plus, optionally, its uuid. With a uuid messages sharing that
+     * timestamp are paged by rowid instead of being skipped.
+     *
+     * @return the messages in chronological order
+     */
+    public ArrayList<Message> getMessages(final Conversation conversation, final int limit, final long timestamp, final String anchorUuid) {
+        // messages that have been evicted from memory may still have updates queued
+        messageUpdateJournal.flush();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String selection;
+        final String[] selectionArgs;
         if (timestamp == -1) {
-            String[] selectionArgs = {conversation.getUuid()};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                    + "=?", selectionArgs, null, null, Message.TIME_SENT
-                    + " DESC", String.valueOf(limit));
+            selection = Message.CONVERSATION + "=?";
+            selectionArgs = new String[]{conversation.getUuid()};
+        } else if (anchorUuid == null) {
+            selection = Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<?";
+            selectionArgs = new String[]{conversation.getUuid(), Long.toString(timestamp)};
         } else {
-            String[] selectionArgs = {conversation.getUuid(),
-                    Long.toString(timestamp)};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                            + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
-                    null, null, Message.TIME_SENT + " DESC",
-                    String.valueOf(limit));
-        }
-        CursorUtils.upgradeCursorWindowSize(cursor);
-        while (cursor.moveToNext()) {
-            try {
-                list.add(0, Message.fromCursor(cursor, conversation));
-            } catch (final Exception e) {
-                Log.e(Config.LOGTAG, "unable to restore message", e);
+            final String time = Long.toString(timestamp);
+            selection = Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<=? and (" + Message.TIME_SENT + "<? or rowid<(select rowid from " + Message.TABLENAME + " where " + Message.UUID + "=?))";
+            selectionArgs = new String[]{conversation.getUuid(), time, time, anchorUuid};
+        }
+        final ArrayList<Message> list = new ArrayList<>();
+        try (final Cursor cursor = db.query(Message.TABLENAME, MESSAGE_COLUMNS, selection, selectionArgs, null, null, Message.TIME_SENT + " DESC,rowid DESC", String.valueOf(limit))) {
+            CursorUtils.upgradeCursorWindowSize(cursor);
+            while (cursor.moveToNext()) {
+                try {
+                    list.add(Message.fromCursor(cursor, conversation));
+                } catch (final Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore message", e);
+                }
             }
         }
-        cursor.close();
+        Collections.reverse(list);
         return list;
     }
 
@@ -927,6 +1166,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     public Message getMessageWithServerMsgId(
             final Conversation conversation, final String messageId) {
+        messageUpdateJournal.flush();
         final var db = this.getReadableDatabase();
         final String sql =
                 "select * from messages where conversationUuid=? and serverMsgId=? LIMIT 1";
@@ -947,10 +1187,11 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     public Message getMessageWithUuidOrRemoteId(
             final Conversation conversation, final String messageId) {
+        messageUpdateJournal.flush();
         final var db = this.getReadableDatabase();
         final String sql =
-                "select * from messages where conversationUuid=? and (uuid=? OR remoteMsgId=?) LIMIT 1";
-        final String[] args = {conversation.getUuid(), messageId, messageId};
+                "select * from messages where (uuid=? and conversationUuid=?) OR (remoteMsgId=? and conversationUuid=?) LIMIT 1";
+        final String[] args = {messageId, conversation.getUuid(), messageId, conversation.getUuid()};
         final Cursor cursor = db.rawQuery(sql, args);
         if (cursor == null) {
             return null;
@@ -965,6 +1206,115 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return message;
     }
 
+    /**
+     * Reads the summary of each conversation: one aggregate query over all conversations finds
+     * the latest message usable as archive reference of each, one range query per conversation
+     * finds the messages newer than that reference and the sent messages still waiting for a
+     * receipt, and a final query fetches those messages. Summaries that would hold more than
+     * {@link Config#SUMMARY_MAX_MESSAGES} messages are marked incomplete.
+     */
+    public Map<String, ConversationSummary> getConversationSummaries(final Collection<Conversation> conversations) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final Map<String, Conversation> lookup = new HashMap<>();
+        for (final Conversation conversation : conversations) {
+            lookup.put(conversation.getUuid(), conversation);
+        }
+        final String reference = " from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=c." + Conversation.UUID + " and " + Message.TYPE + " not in (" + Message.TYPE_PRIVATE + "," + Message.TYPE_PRIVATE_FILE + ") and (" + Message.STATUS + "=" + Message.STATUS_RECEIVED + " or " + Message.CARBON + "=1 or " + Message.SERVER_MSG_ID + " not null) order by " + Message.TIME_SENT + " desc limit 1";
+        final String sql = "select c." + Conversation.UUID + ","
+                + "(select rowid from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=c." + Conversation.UUID + " order by " + Message.TIME_SENT + " desc limit 1),"
+                + "(select rowid" + reference + "),"
+                + "(select count(*) from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=c." + Conversation.UUID + " and " + Message.READ + "=0),"
+                + "(select " + Message.UUID + " from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=c." + Conversation.UUID + " and " + Message.READ + "=0 order by " + Message.TIME_SENT + " limit 1),"
+                + "(select count(*) from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=c." + Conversation.UUID + " and " + Message.STATUS + " IN (" + Message.STATUS_UNSEND + "," + Message.STATUS_WAITING + ")),"
+                + "(select " + Message.TIME_SENT + reference + ")"
+                + " from " + Conversation.TABLENAME + " c where c." + Conversation.STATUS + "=" + Conversation.STATUS_AVAILABLE;
+        final Map<String, ConversationSummary> summaries = new HashMap<>();
+        final Map<Long, ConversationSummary> byRowId = new HashMap<>();
+        final Map<ConversationSummary, Long> referenceTimes = new HashMap<>();
+        try (final Cursor cursor = db.rawQuery(sql, null)) {
+            while (cursor.moveToNext()) {
+                final Conversation conversation = lookup.get(cursor.getString(0));
+                if (conversation == null) {
+                    continue;
+                }
+                final ConversationSummary summary = new ConversationSummary(conversation, cursor.getInt(3), cursor.getString(4), cursor.getInt(5));
+                summaries.put(conversation.getUuid(), summary);
+                if (!cursor.isNull(1)) {
+                    byRowId.put(cursor.getLong(1), summary);
+                }
+                if (!cursor.isNull(2)) {
+                    byRowId.put(cursor.getLong(2), summary);
+                }
+                referenceTimes.put(summary, cursor.isNull(6) ? 0L : cursor.getLong(6));
+            }
+        }
+        // everything newer than the reference has to be in memory so that the archive catch-up
+        // recognizes it; older sent messages only as long as a receipt may still arrive
+        final long receiptWindow = System.currentTimeMillis() - Config.SUMMARY_RECEIPT_WINDOW;
+        final String range = "select rowid from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=? and " + Message.TIME_SENT + ">=? and (" + Message.TIME_SENT + ">=? or " + Message.STATUS + "=" + Message.STATUS_SEND + ") order by " + Message.TIME_SENT + " desc limit " + (Config.SUMMARY_MAX_MESSAGES + 1);
+        for (final Map.Entry<ConversationSummary, Long> entry : referenceTimes.entrySet()) {
+            final ConversationSummary summary = entry.getKey();
+            final long referenceTime = entry.getValue();
+            final String[] args = {
+                    summary.conversation.getUuid(),
+                    String.valueOf(Math.min(referenceTime, receiptWindow)),
+                    String.valueOf(referenceTime)
+            };
+            final List<Long> candidates = new ArrayList<>();
+            try (final Cursor cursor = db.rawQuery(range, args)) {
+                while (cursor.moveToNext()) {
+                    candidates.add(cursor.getLong(0));
+                }
+            }
+            if (candidates.size() > Config.SUMMARY_MAX_MESSAGES) {
+                summary.complete = false;
+                continue;
+            }
+            for (final Long rowId : candidates) {
+                byRowId.put(rowId, summary);
+            }
+        }
+        final List<Long> rowIds = new ArrayList<>(byRowId.keySet());
+        for (int i = 0; i < rowIds.size(); i += 500) {
+            final List<Long> chunk = rowIds.subList(i, Math.min(i + 500, rowIds.size()));
+            final String selection = "rowid in (" + Joiner.on(',').join(chunk) + ")";
+            final String[] columns = new String[MESSAGE_COLUMNS.length + 1];
+            columns[0] = "rowid";
+            System.arraycopy(MESSAGE_COLUMNS, 0, columns, 1, MESSAGE_COLUMNS.length);
+            try (final Cursor cursor = db.query(Message.TABLENAME, columns, selection, null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    final ConversationSummary summary = byRowId.get(cursor.getLong(0));
+                    try {
+                        summary.messages.add(Message.fromCursor(cursor, summary.conversation));
+                    } catch (final Exception e) {
+                        Log.e(Config.LOGTAG, "unable to restore message", e);
+                    }
+                }
+            }
+        }
+        for (final ConversationSummary summary : summaries.values()) {
+            Collections.sort(summary.messages, (a, b) -> Long.compare(a.getTimeSent(), b.getTimeSent()));
+        }
+        return summaries;
+    }
+
+    public static class ConversationSummary {
+        private final Conversation conversation;
+        public final List<Message> messages = new ArrayList<>(2);
+        public final int unread;
+        public final String firstUnread;
+        public final int pending;
+        // false if the conversation has too many messages newer than its archive reference
+        public boolean complete = true;
+
+        private ConversationSummary(final Conversation conversation, final int unread, final String firstUnread, final int pending) {
+            this.conversation = conversation;
+            this.unread = unread;
+            this.firstUnread = firstUnread;
+            this.pending = pending;
+        }
+    }
+
     public static class FilePath {
         public final UUID uuid;
         public final String path;
@@ -1065,7 +1415,13 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(final Message message, final boolean includeBody) {
-        final var db = this.getWritableDatabase();
+        final Boolean pendingIncludeBody = messageUpdateJournal.remove(message.getUuid());
+        final boolean body = includeBody || Boolean.TRUE.equals(pendingIncludeBody);
+        return updateMessage(this.getWritableDatabase(), message, body);
+    }
+
+    static boolean updateMessage(
+            final SQLiteDatabase db, final Message message, final boolean includeBody) {
         final String[] args = {message.getUuid()};
         final var contentValues = message.getContentValues();
         contentValues.remove(Message.UUID);
@@ -1076,7 +1432,21 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return rows == 1;
     }
 
+    /**
+     * Queues an update of an existing message. Repeated updates of the same message are coalesced
+     * and written in batches. Use {@link #updateMessage(Message, boolean)} if the caller relies on
+     * the row having been written when this method returns.
+     */
+    public void updateMessageDeferred(final Message message, final boolean includeBody) {
+        messageUpdateJournal.enqueue(message, includeBody);
+    }
+
+    public void flushMessageUpdates() {
+        messageUpdateJournal.flush();
+    }
+
     public boolean updateMessage(final Message message, final String uuid) {
+        messageUpdateJournal.flush();
         final var db = this.getWritableDatabase();
         final String[] args = {uuid};
         final int rows =
@@ -1099,22 +1469,47 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         long start = SystemClock.elapsedRealtime();
         final Account account = roster.getAccount();
         final SQLiteDatabase db = this.getWritableDatabase();
+        final List<Contact> dirtyContacts = roster.getDirtyContacts();
+        final String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
+        final Map<Contact, ContentValues> persisted = new HashMap<>();
+        int deleted = 0;
         db.beginTransaction();
-        for (Contact contact : roster.getContacts()) {
-            if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
-                db.insert(Contact.TABLENAME, null, contact.getContentValues());
-            } else {
-                String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
-                String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
-                db.delete(Contact.TABLENAME, where, whereArgs);
+        try {
+            for (final Contact contact : dirtyContacts) {
+                final String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
+                if (contact.isPersistable()) {
+                    final ContentValues contentValues = contact.getContentValues();
+                    if (db.update(Contact.TABLENAME, contentValues, where, whereArgs) == 0) {
+                        db.insert(Contact.TABLENAME, null, contentValues);
+                    }
+                    persisted.put(contact, contentValues);
+                } else {
+                    db.delete(Contact.TABLENAME, where, whereArgs);
+                    persisted.put(contact, null);
+                    deleted++;
+                }
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        for (final Map.Entry<Contact, ContentValues> entry : persisted.entrySet()) {
+            entry.getKey().setPersistedContentValues(entry.getValue());
+        }
+        final int written = persisted.size() - deleted;
         account.setRosterVersion(roster.getVersion());
         updateAccount(account);
         long duration = SystemClock.elapsedRealtime() - start;
-        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms");
+        Log.d(
+                Config.LOGTAG,
+                account.getJid().asBareJid()
+                        + ": persisted roster in "
+                        + duration
+                        + "ms (rows written="
+                        + written
+                        + ", deleted="
+                        + deleted
+                        + ")");
     }
 
     public void deleteMessagesInConversation(Conversation conversation) {
@@ -1222,6 +1617,45 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return session;
     }
 
+    /**
+     * @return the existing sessions of the given addresses; queried by name in chunks
+     */
+    public Map<SignalProtocolAddress, SessionRecord> loadSessions(final Account account, final Collection<SignalProtocolAddress> contacts) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final Set<SignalProtocolAddress> wanted = new HashSet<>(contacts);
+        final List<String> names = new ArrayList<>();
+        for (final SignalProtocolAddress contact : wanted) {
+            if (!names.contains(contact.getName())) {
+                names.add(contact.getName());
+            }
+        }
+        final Map<SignalProtocolAddress, SessionRecord> sessions = new HashMap<>();
+        final String[] columns = {SQLiteAxolotlStore.NAME, SQLiteAxolotlStore.DEVICE_ID, SQLiteAxolotlStore.KEY};
+        for (int i = 0; i < names.size(); i += 500) {
+            final List<String> chunk = names.subList(i, Math.min(i + 500, names.size()));
+            final String[] selectionArgs = new String[chunk.size() + 1];
+            selectionArgs[0] = account.getUuid();
+            for (int j = 0; j < chunk.size(); ++j) {
+                selectionArgs[j + 1] = chunk.get(j);
+            }
+            final String selection = SQLiteAxolotlStore.ACCOUNT + "=? AND " + SQLiteAxolotlStore.NAME + " IN (" + Joiner.on(',').join(Collections.nCopies(chunk.size(), "?")) + ")";
+            try (final Cursor cursor = db.query(SQLiteAxolotlStore.SESSION_TABLENAME, columns, selection, selectionArgs, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    final SignalProtocolAddress address = new SignalProtocolAddress(cursor.getString(0), cursor.getInt(1));
+                    if (!wanted.contains(address)) {
+                        continue;
+                    }
+                    try {
+                        sessions.put(address, new SessionRecord(Base64.decode(cursor.getString(2), Base64.DEFAULT)));
+                    } catch (final IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+        }
+        return sessions;
+    }
+
     public List<Integer> getSubDeviceSessions(Account account, SignalProtocolAddress contact) {
         final SQLiteDatabase db = this.getReadableDatabase();
         return getSubDeviceSessions(db, account, contact);
@@ -1282,6 +1716,24 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
     }
 
+    public void storeSessions(final Account account, final Map<SignalProtocolAddress, SessionRecord> sessions) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Map.Entry<SignalProtocolAddress, SessionRecord> session : sessions.entrySet()) {
+                final ContentValues values = new ContentValues();
+                values.put(SQLiteAxolotlStore.NAME, session.getKey().getName());
+                values.put(SQLiteAxolotlStore.DEVICE_ID, session.getKey().getDeviceId());
+                values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(session.getValue().serialize(), Base64.DEFAULT));
+                values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
+                db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public void deleteSession(Account account, SignalProtocolAddress contact) {
         SQLiteDatabase db = this.getWritableDatabase();
         deleteSession(db, account, contact);
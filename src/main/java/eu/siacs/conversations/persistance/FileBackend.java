@@ -82,6 +82,7 @@ public class FileBackend {
     private static final String FILE_PROVIDER = ".files";
     private static final float IGNORE_PADDING = 0.15f;
     private final XmppConnectionService mXmppConnectionService;
+    private ThumbnailCache thumbnailCache;
 
     private static final List<String> STORAGE_TYPES;
 
@@ -103,6 +104,15 @@ public class FileBackend {
         this.mXmppConnectionService = service;
     }
 
+    private synchronized ThumbnailCache getThumbnailCache() {
+        if (this.thumbnailCache == null) {
+            this.thumbnailCache =
+                    new ThumbnailCache(
+                            new File(mXmppConnectionService.getCacheDir(), "thumbnails"));
+        }
+        return this.thumbnailCache;
+    }
+
     public static long getFileSize(Context context, Uri uri) {
         try (final Cursor cursor =
                 context.getContentResolver().query(uri, null, null, null, null)) {
@@ -972,6 +982,12 @@ public class FileBackend {
                     return thumbnail;
                 }
                 DownloadableFile file = getFile(message);
+                final long lastModified = file.lastModified();
+                thumbnail = getThumbnailCache().get(uuid, size, lastModified);
+                if (thumbnail != null) {
+                    cache.put(uuid, thumbnail);
+                    return thumbnail;
+                }
                 final String mime = file.getMimeType();
                 if ("application/pdf".equals(mime)) {
                     thumbnail = getPdfDocumentPreview(file, size);
@@ -997,11 +1013,16 @@ public class FileBackend {
                     }
                 }
                 cache.put(uuid, thumbnail);
+                getThumbnailCache().put(uuid, size, lastModified, thumbnail);
             }
         }
         return thumbnail;
     }
 
+    public void evictThumbnail(final String uuid) {
+        getThumbnailCache().invalidate(uuid);
+    }
+
     private Bitmap getFullSizeImagePreview(File file, int size) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inSampleSize = calcSampleSize(file, size);
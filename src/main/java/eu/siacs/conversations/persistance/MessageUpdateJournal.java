@@ -0,0 +1,123 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.google.common.base.Stopwatch;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Message;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind journal for updates to existing message rows. Status changes like SEND → RECEIVED →
+ * DISPLAYED tend to arrive in bursts (receipts, chat markers, MAM catchup); instead of committing
+ * every single one we keep the latest pending update per message UUID and write all of them in one
+ * transaction once the flush interval has passed or enough updates have piled up.
+ *
+ * <p>Inserts are not journaled. Newly received messages are acknowledged to the server once they
+ * have been handled and must not get lost if the process dies before the next flush.
+ */
+class MessageUpdateJournal {
+
+    private final DatabaseBackend databaseBackend;
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Object flushLock = new Object();
+    private Map<String, PendingUpdate> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private int coalesced = 0;
+
+    MessageUpdateJournal(final DatabaseBackend databaseBackend) {
+        this.databaseBackend = databaseBackend;
+    }
+
+    synchronized void enqueue(final Message message, final boolean includeBody) {
+        final PendingUpdate previous = pending.remove(message.getUuid());
+        if (previous != null) {
+            coalesced++;
+        }
+        final boolean body = includeBody || (previous != null && previous.includeBody);
+        pending.put(message.getUuid(), new PendingUpdate(message, body));
+        if (pending.size() >= Config.MESSAGE_WRITE_BEHIND_MAX_PENDING) {
+            cancelScheduledFlush();
+            executor.execute(this::flush);
+        } else if (scheduledFlush == null) {
+            scheduledFlush =
+                    executor.schedule(
+                            this::flush,
+                            Config.MESSAGE_WRITE_BEHIND_INTERVAL,
+                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes the pending update for a message that is about to be written directly.
+     *
+     * @return whether the removed update would have written the body or null if there was none
+     */
+    synchronized Boolean remove(final String uuid) {
+        final PendingUpdate update = pending.remove(uuid);
+        return update == null ? null : update.includeBody;
+    }
+
+    void flush() {
+        synchronized (flushLock) {
+            final Collection<PendingUpdate> updates;
+            final int coalesced;
+            synchronized (this) {
+                cancelScheduledFlush();
+                if (pending.isEmpty()) {
+                    return;
+                }
+                updates = pending.values();
+                coalesced = this.coalesced;
+                this.pending = new LinkedHashMap<>();
+                this.coalesced = 0;
+            }
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            final SQLiteDatabase db = databaseBackend.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (final PendingUpdate update : updates) {
+                    DatabaseBackend.updateMessage(db, update.message, update.includeBody);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.d(
+                    Config.LOGTAG,
+                    "flushed "
+                            + updates.size()
+                            + " message updates ("
+                            + coalesced
+                            + " coalesced) in "
+                            + stopwatch.stop());
+        }
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private static class PendingUpdate {
+        private final Message message;
+        private final boolean includeBody;
+
+        private PendingUpdate(final Message message, final boolean includeBody) {
+            this.message = message;
+            this.includeBody = includeBody;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package eu.siacs.conversations.persistance;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Size bounded disk cache for encoded message thumbnails. It sits behind the in-memory bitmap cache
+ * so that thumbnails survive process restarts and memory trims without having to decode the full
+ * size image or video frame again.
+ *
+ * <p>Entries are stored as {@code <uuid>/<size>_<mtime>} so that a changed file results in a new
+ * key and all sizes of a message can be invalidated at once. The last modified time of an entry is
+ * bumped on every hit and used for LRU eviction.
+ */
+public class ThumbnailCache {
+
+    private static final Executor EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final File directory;
+    private long currentSize = -1;
+
+    public ThumbnailCache(final File directory) {
+        this.directory = directory;
+    }
+
+    public Bitmap get(final String uuid, final int size, final long lastModified) {
+        final File file = getFile(uuid, size, lastModified);
+        if (!file.isFile()) {
+            return null;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if (bitmap == null) {
+            delete(file);
+            return null;
+        }
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            Log.d(Config.LOGTAG, "unable to touch cached thumbnail " + file.getAbsolutePath());
+        }
+        return bitmap;
+    }
+
+    /** Asynchronously encodes the thumbnail and writes it to disk. */
+    public void put(
+            final String uuid, final int size, final long lastModified, final Bitmap bitmap) {
+        EXECUTOR.execute(() -> write(uuid, size, lastModified, bitmap));
+    }
+
+    private void write(
+            final String uuid, final int size, final long lastModified, final Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        final File file = getFile(uuid, size, lastModified);
+        final File parent = file.getParentFile();
+        if (parent == null || (!parent.isDirectory() && !parent.mkdirs())) {
+            return;
+        }
+        final File temporary = new File(parent, file.getName() + ".tmp");
+        final Bitmap.CompressFormat format =
+                bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        try (final FileOutputStream outputStream = new FileOutputStream(temporary)) {
+            if (!bitmap.compress(format, Config.THUMBNAIL_DISK_CACHE_QUALITY, outputStream)) {
+                throw new IOException("unable to compress thumbnail");
+            }
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to write thumbnail to disk cache", e);
+            delete(temporary);
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            delete(temporary);
+            return;
+        }
+        final boolean evict;
+        synchronized (this) {
+            if (currentSize >= 0) {
+                currentSize += file.length();
+            }
+            evict = currentSize < 0 || currentSize > Config.THUMBNAIL_DISK_CACHE_SIZE;
+        }
+        if (evict) {
+            evict();
+        }
+    }
+
+    /** Asynchronously removes every cached size of the given message. */
+    public void invalidate(final String uuid) {
+        EXECUTOR.execute(() -> remove(uuid));
+    }
+
+    private void remove(final String uuid) {
+        final File[] files = new File(directory, uuid).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            delete(file);
+        }
+        delete(new File(directory, uuid));
+    }
+
+    private synchronized void evict() {
+        final List<File> files = new ArrayList<>();
+        final File[] entries = directory.listFiles();
+        if (entries != null) {
+            for (final File entry : entries) {
+                final File[] children = entry.listFiles();
+                if (children != null) {
+                    files.addAll(Arrays.asList(children));
+                }
+            }
+        }
+        long size = 0;
+        for (final File file : files) {
+            size += file.length();
+        }
+        if (size > Config.THUMBNAIL_DISK_CACHE_SIZE) {
+            files.sort(Comparator.comparingLong(File::lastModified));
+            final long target = Config.THUMBNAIL_DISK_CACHE_SIZE * 3 / 4;
+            int evicted = 0;
+            for (final File file : files) {
+                if (size <= target) {
+                    break;
+                }
+                final long length = file.length();
+                if (file.delete()) {
+                    size -= length;
+                    ++evicted;
+                }
+            }
+            Log.d(Config.LOGTAG, "evicted " + evicted + " thumbnails from disk cache");
+        }
+        this.currentSize = size;
+    }
+
+    private File getFile(final String uuid, final int size, final long lastModified) {
+        return new File(new File(directory, uuid), size + "_" + lastModified);
+    }
+
+    private void delete(final File file) {
+        if (file.exists() && !file.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete " + file.getAbsolutePath());
+        }
+        synchronized (this) {
+            currentSize = -1;
+        }
+    }
+}
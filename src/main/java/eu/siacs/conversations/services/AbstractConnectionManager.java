@@ -21,6 +21,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
@@ -115,6 +116,68 @@ public class AbstractConnectionManager {
         }
     }
 
+    /**
+     * Re-derives the state of an AES-GCM decryption that was interrupted after writing the
+     * plaintext currently found in the file. GCM does not allow exporting the cipher state, but
+     * encrypting the plaintext again yields the original ciphertext which is then fed into a fresh
+     * decrypting cipher. Plaintext that the cipher still holds back (it can not tell yet whether it
+     * is looking at the authentication tag) will be cut off the file and written again.
+     */
+    public static DecryptionResumption resumeDecryption(final DownloadableFile file)
+            throws IOException {
+        final AEADBlockCipher encryption = createAesGcmCipher(file, true);
+        final AEADBlockCipher decryption = createAesGcmCipher(file, false);
+        final byte[] plaintext = new byte[8192];
+        final byte[] ciphertext = new byte[encryption.getUpdateOutputSize(plaintext.length)];
+        final byte[] discard = new byte[decryption.getUpdateOutputSize(ciphertext.length)];
+        long offset = 0;
+        long length = 0;
+        try (final InputStream is = new FileInputStream(file)) {
+            int count;
+            while ((count = is.read(plaintext)) != -1) {
+                final int encrypted = encryption.processBytes(plaintext, 0, count, ciphertext, 0);
+                offset += encrypted;
+                length += decryption.processBytes(ciphertext, 0, encrypted, discard, 0);
+            }
+        }
+        return new DecryptionResumption(decryption, offset, length);
+    }
+
+    private static AEADBlockCipher createAesGcmCipher(
+            final DownloadableFile file, final boolean forEncryption) {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(
+                forEncryption,
+                new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
+        return cipher;
+    }
+
+    public static class DecryptionResumption {
+        private final AEADBlockCipher cipher;
+        /** number of ciphertext bytes the cipher has consumed */
+        public final long offset;
+        /** number of plaintext bytes the cipher has emitted */
+        private final long length;
+
+        private DecryptionResumption(
+                final AEADBlockCipher cipher, final long offset, final long length) {
+            this.cipher = cipher;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Truncates the file to the plaintext the cipher has emitted and returns a stream that
+         * decrypts the ciphertext following {@link #offset} into it.
+         */
+        public OutputStream createOutputStream(final DownloadableFile file) throws IOException {
+            try (final FileChannel channel = new FileOutputStream(file, true).getChannel()) {
+                channel.truncate(length);
+            }
+            return new CipherOutputStream(new FileOutputStream(file, true), cipher);
+        }
+    }
+
     public XmppConnectionService getXmppConnectionService() {
         return this.mXmppConnectionService;
     }
@@ -0,0 +1,64 @@
+package eu.siacs.conversations.services;
+
+import eu.siacs.conversations.entities.Conversation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the conversations in the order of {@link Conversation#compareTo(Conversation)}. Instead of
+ * sorting everything whenever the UI refreshes, only conversations whose {@link
+ * Conversation.SortKey} has changed since the previous snapshot are moved to their new position.
+ */
+class ConversationOrdering {
+
+    private final List<Conversation> ordered = new ArrayList<>();
+    private final HashMap<Conversation, Conversation.SortKey> sortKeys = new HashMap<>();
+    private final Comparator<Conversation> comparator =
+            (a, b) -> sortKeys.get(a).compareTo(sortKeys.get(b));
+
+    /**
+     * @return a new list containing the given conversations in order
+     */
+    synchronized List<Conversation> snapshot(final Collection<Conversation> source) {
+        final List<Conversation> conversations = new ArrayList<>(source);
+        final List<Conversation> changed = new ArrayList<>();
+        int known = 0;
+        for (final Conversation conversation : conversations) {
+            final Conversation.SortKey sortKey = conversation.getSortKey();
+            final Conversation.SortKey previous = sortKeys.put(conversation, sortKey);
+            if (previous == null) {
+                changed.add(conversation);
+            } else {
+                ++known;
+                if (previous != sortKey) {
+                    changed.add(conversation);
+                }
+            }
+        }
+        if (known < ordered.size()) {
+            final Set<Conversation> current = new HashSet<>(conversations);
+            ordered.removeIf(conversation -> !current.contains(conversation));
+            sortKeys.keySet().retainAll(current);
+        }
+        if (changed.size() > ordered.size() / 4) {
+            ordered.clear();
+            ordered.addAll(conversations);
+            Collections.sort(ordered, comparator);
+        } else if (!changed.isEmpty()) {
+            final Set<Conversation> moving = new HashSet<>(changed);
+            ordered.removeIf(moving::contains);
+            for (final Conversation conversation : changed) {
+                final int index = Collections.binarySearch(ordered, conversation, comparator);
+                ordered.add(index < 0 ? -index - 1 : index, conversation);
+            }
+        }
+        return new ArrayList<>(ordered);
+    }
+}
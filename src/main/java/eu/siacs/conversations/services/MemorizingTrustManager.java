@@ -58,6 +58,7 @@ import eu.siacs.conversations.entities.MTMDecision;
 import eu.siacs.conversations.http.HttpConnectionManager;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.ui.MemorizingActivity;
+import eu.siacs.conversations.utils.SSLContextCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -296,6 +297,8 @@ public class MemorizingTrustManager {
     public void deleteCertificate(String alias) throws KeyStoreException {
         appKeyStore.deleteEntry(alias);
         keyStoreUpdated();
+        // cached TLS sessions would otherwise be resumed without checking the certificate again
+        SSLContextCache.invalidate();
     }
 
     private X509TrustManager getTrustManager(final KeyStore keyStore) {
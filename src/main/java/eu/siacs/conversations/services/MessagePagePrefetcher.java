@@ -0,0 +1,101 @@
+package eu.siacs.conversations.services;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.persistance.DatabaseBackend;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads the page of messages preceding the oldest loaded message of a conversation ahead of time
+ * so that the next {@link XmppConnectionService#loadMoreMessages} call does not have to wait for
+ * the database. At most one page per conversation is kept; it is only handed out if the oldest
+ * loaded message is still the one the page was read for.
+ */
+class MessagePagePrefetcher {
+
+    private final DatabaseBackend databaseBackend;
+    private final Executor executor;
+    private final HashMap<String, Page> pages = new HashMap<>();
+    // bumped on every invalidation so that reads still running at that time are not stored
+    private long generation = 0;
+
+    MessagePagePrefetcher(final DatabaseBackend databaseBackend, final Executor executor) {
+        this.databaseBackend = databaseBackend;
+        this.executor = executor;
+    }
+
+    void prefetch(final Conversation conversation, final Message anchor) {
+        if (anchor == null) {
+            return;
+        }
+        final String uuid = conversation.getUuid();
+        final long started;
+        synchronized (pages) {
+            final Page page = pages.get(uuid);
+            if (page != null && page.anchor.equals(anchor.getUuid())) {
+                return;
+            }
+            started = generation;
+        }
+        executor.execute(() -> {
+            final List<Message> messages = databaseBackend.getMessages(conversation, Config.PAGE_SIZE, anchor.getTimeSent(), anchor.getUuid());
+            synchronized (pages) {
+                if (generation == started) {
+                    pages.put(uuid, new Page(anchor.getUuid(), messages));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the prefetched page preceding the anchor or null if there is none
+     */
+    List<Message> take(final Conversation conversation, final Message anchor) {
+        if (anchor == null) {
+            return null;
+        }
+        synchronized (pages) {
+            final Page page = pages.get(conversation.getUuid());
+            if (page == null || !page.anchor.equals(anchor.getUuid())) {
+                return null;
+            }
+            pages.remove(conversation.getUuid());
+            return page.messages;
+        }
+    }
+
+    /**
+     * Drops the prefetched page of the conversation. Has to be called whenever messages of the
+     * conversation are deleted or changed in the database.
+     */
+    void invalidate(final Conversation conversation) {
+        synchronized (pages) {
+            pages.remove(conversation.getUuid());
+            generation++;
+        }
+    }
+
+    /**
+     * Drops the prefetched pages of all conversations.
+     */
+    void invalidateAll() {
+        synchronized (pages) {
+            pages.clear();
+            generation++;
+        }
+    }
+
+    private static class Page {
+        private final String anchor;
+        private final List<Message> messages;
+
+        private Page(final String anchor, final List<Message> messages) {
+            this.anchor = anchor;
+            this.messages = messages;
+        }
+    }
+}
@@ -57,6 +57,7 @@ import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Iterables;
 
 import org.conscrypt.Conscrypt;
@@ -74,9 +75,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -84,8 +87,11 @@ import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -203,6 +209,7 @@ public class XmppConnectionService extends Service {
     private static final String SETTING_LAST_ACTIVITY_TS = "last_activity_timestamp";
 
     public final CountDownLatch restoredFromDatabaseLatch = new CountDownLatch(1);
+    private final Map<String, Long> startupTimings = new LinkedHashMap<>();
     private final static Executor FILE_OBSERVER_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static Executor FILE_ATTACHMENT_EXECUTOR = Executors.newSingleThreadExecutor();
 
@@ -214,6 +221,7 @@ public class XmppConnectionService extends Service {
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
     private final IBinder mBinder = new XmppConnectionBinder();
     private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
+    private final ConversationOrdering conversationOrdering = new ConversationOrdering();
     private final IqGenerator mIqGenerator = new IqGenerator(this);
     private final Set<String> mInProgressAvatarFetches = new HashSet<>();
     private final Set<String> mOmittedPepAvatarFetches = new HashSet<>();
@@ -228,6 +236,7 @@ public class XmppConnectionService extends Service {
         }
     };
     public DatabaseBackend databaseBackend;
+    private MessagePagePrefetcher messagePagePrefetcher;
     private final ReplacingSerialSingleThreadExecutor mContactMergerExecutor = new ReplacingSerialSingleThreadExecutor("ContactMerger");
     private long mLastActivity = 0;
 
@@ -292,7 +301,7 @@ public class XmppConnectionService extends Service {
                     if (message != null) {
                         message.setStatus(Message.STATUS_SEND);
                         message.setErrorMessage(null);
-                        databaseBackend.updateMessage(message, false);
+                        databaseBackend.updateMessageDeferred(message, false);
                         return true;
                     }
                 }
@@ -324,6 +333,7 @@ public class XmppConnectionService extends Service {
 
 
     private final AtomicLong mLastExpiryRun = new AtomicLong(0);
+    private final AtomicLong mLastEvictionRun = new AtomicLong(0);
     private final LruCache<Pair<String, String>, ServiceDiscoveryResult> discoCache = new LruCache<>(20);
     private final OnStatusChanged statusListener = new OnStatusChanged() {
 
@@ -822,6 +832,9 @@ public class XmppConnectionService extends Service {
         if (SystemClock.elapsedRealtime() - mLastExpiryRun.get() >= Config.EXPIRY_INTERVAL) {
             expireOldMessages();
         }
+        if (Config.LAZY_MESSAGE_LOADING && SystemClock.elapsedRealtime() - mLastEvictionRun.get() >= Config.MESSAGE_EVICTION_INTERVAL) {
+            evictIdleConversations();
+        }
         return START_STICKY;
     }
 
@@ -1138,6 +1151,7 @@ public class XmppConnectionService extends Service {
             long timestamp = getAutomaticMessageDeletionDate();
             if (timestamp > 0) {
                 databaseBackend.expireOldMessages(timestamp);
+                messagePagePrefetcher.invalidateAll();
                 synchronized (XmppConnectionService.this.conversations) {
                     for (Conversation conversation : XmppConnectionService.this.conversations) {
                         conversation.expireOldMessages(timestamp);
@@ -1204,6 +1218,7 @@ public class XmppConnectionService extends Service {
 
         Log.d(Config.LOGTAG, "initializing database...");
         this.databaseBackend = DatabaseBackend.getInstance(getApplicationContext());
+        this.messagePagePrefetcher = new MessagePagePrefetcher(databaseBackend, mDatabaseReaderExecutor);
         Log.d(Config.LOGTAG, "restoring accounts...");
         this.accounts = databaseBackend.getAccounts();
         final SharedPreferences.Editor editor = getPreferences().edit();
@@ -1336,6 +1351,7 @@ public class XmppConnectionService extends Service {
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        mDatabaseWriterExecutor.execute(databaseBackend::flushMessageUpdates);
         if (level >= TRIM_MEMORY_COMPLETE) {
             Log.d(Config.LOGTAG, "clear cache due to low memory");
             getBitmapCache().evictAll();
@@ -1352,6 +1368,7 @@ public class XmppConnectionService extends Service {
             //ignored
         }
         destroyed = false;
+        databaseBackend.flushMessageUpdates();
         fileObserver.stopWatching();
         internalPingExecutor.shutdown();
         super.onDestroy();
@@ -1486,6 +1503,7 @@ public class XmppConnectionService extends Service {
     }
 
     private void logoutAndSave(boolean stop) {
+        databaseBackend.flushMessageUpdates();
         int activeAccounts = 0;
         for (final Account account : accounts) {
             if (account.isConnectionEnabled()) {
@@ -1889,14 +1907,22 @@ public class XmppConnectionService extends Service {
     }
 
     public void markReadUpToStanzaId(final Conversation conversation, final String stanzaId) {
-        final Message message = conversation.findMessageWithServerMsgId(stanzaId);
+        final Message message = findMessageWithServerMsgId(conversation, stanzaId);
         if (message == null) { // do we want to check if isRead?
             return;
         }
         markReadUpTo(conversation, message);
     }
 
-    public void markReadUpTo(final Conversation conversation, final Message message) {
+    public void markReadUpTo(final Conversation conversation, final Message stored) {
+        // messages read from the database are not in memory; mark up to the latest one that is
+        final Message message =
+                conversation.findMessageWithUuid(stored.getUuid()) != null
+                        ? stored
+                        : conversation.findLastMessageSentAtOrBefore(stored.getTimeSent());
+        if (message == null) {
+            return;
+        }
         final boolean isDismissNotification = isDismissNotification(message);
         final var uuid = message.getUuid();
         Log.d(
@@ -2092,7 +2118,9 @@ public class XmppConnectionService extends Service {
             }
             long diffConversationsRestore = SystemClock.elapsedRealtime() - startTimeConversationsRestore;
             Log.d(Config.LOGTAG, "finished restoring conversations in " + diffConversationsRestore + "ms");
+            recordStartupTiming("conversations", startTimeConversationsRestore);
             Runnable runnable = () -> {
+                final long startExpiry = SystemClock.elapsedRealtime();
                 if (DatabaseBackend.requiresMessageIndexRebuild()) {
                     DatabaseBackend.getInstance(this).rebuildMessagesIndex();
                 }
@@ -2102,43 +2130,186 @@ public class XmppConnectionService extends Service {
                     Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
                     databaseBackend.expireOldMessages(deletionDate);
                 }
-                Log.d(Config.LOGTAG, "restoring roster...");
-                for (final Account account : accounts) {
-                    databaseBackend.readRoster(account.getRoster());
-                    account.initAccountServices(XmppConnectionService.this); //roster needs to be loaded at this stage
-                }
-                getBitmapCache().evictAll();
-                loadPhoneContacts();
-                Log.d(Config.LOGTAG, "restoring messages...");
-                final long startMessageRestore = SystemClock.elapsedRealtime();
-                final Conversation quickLoad = QuickLoader.get(this.conversations);
-                if (quickLoad != null) {
-                    restoreMessages(quickLoad);
+                recordStartupTiming("expiry", startExpiry);
+                final ExecutorService restoreExecutor = Executors.newFixedThreadPool(Config.DATABASE_RESTORE_THREADS);
+                try {
+                    Log.d(Config.LOGTAG, "restoring roster...");
+                    final long startRosterRestore = SystemClock.elapsedRealtime();
+                    final List<Future<?>> rosters = new ArrayList<>();
+                    for (final Account account : accounts) {
+                        rosters.add(restoreExecutor.submit(() -> databaseBackend.readRoster(account.getRoster())));
+                    }
+                    awaitAll(rosters);
+                    for (final Account account : accounts) {
+                        account.initAccountServices(XmppConnectionService.this); //roster needs to be loaded at this stage
+                    }
+                    recordStartupTiming("roster", startRosterRestore);
+                    getBitmapCache().evictAll();
+                    loadPhoneContacts();
+                    Log.d(Config.LOGTAG, "restoring messages...");
+                    final long startMessageRestore = SystemClock.elapsedRealtime();
+                    final Conversation quickLoad = QuickLoader.get(this.conversations);
+                    if (quickLoad != null) {
+                        restoreMessages(quickLoad);
+                        updateConversationUi();
+                        final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
+                        Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
+                    }
+                    final List<Conversation> pending = getRestoreOrder(quickLoad);
+                    final int visible = Math.min(pending.size(), Config.STARTUP_VISIBLE_CONVERSATIONS);
+                    awaitAll(restoreMessages(restoreExecutor, pending.subList(0, visible)));
                     updateConversationUi();
-                    final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                    Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
-                }
-                for (Conversation conversation : this.conversations) {
-                    if (quickLoad != conversation) {
-                        restoreMessages(conversation);
+                    recordStartupTiming("visible messages", startMessageRestore);
+                    final List<Conversation> remaining = pending.subList(visible, pending.size());
+                    if (Config.LAZY_MESSAGE_LOADING) {
+                        awaitAll(restoreMessages(restoreExecutor, restoreSummaries(remaining)));
+                    } else {
+                        awaitAll(restoreMessages(restoreExecutor, remaining));
                     }
+                    mNotificationService.finishBacklog();
+                    restoredFromDatabaseLatch.countDown();
+                    recordStartupTiming("messages", startMessageRestore);
+                    final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
+                    Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                } finally {
+                    restoreExecutor.shutdown();
                 }
-                mNotificationService.finishBacklog();
-                restoredFromDatabaseLatch.countDown();
-                final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                Log.d(Config.LOGTAG, "startup timings: " + getStartupTimings());
                 updateConversationUi();
             };
             mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
         }
     }
 
+    /**
+     * Orders the conversations the way the overview will show them (pinned first, then by the
+     * time of the last message) so that the top of the list is restored first.
+     */
+    private List<Conversation> getRestoreOrder(final Conversation skip) {
+        final Map<String, Long> lastMessageTimes = databaseBackend.getLastMessageTimes(Conversation.STATUS_AVAILABLE);
+        final List<Conversation> order = new ArrayList<>(this.conversations);
+        order.remove(skip);
+        Collections.sort(order, (a, b) -> ComparisonChain.start()
+                .compareTrueFirst(a.getBooleanAttribute(Conversation.ATTRIBUTE_PINNED_ON_TOP, false), b.getBooleanAttribute(Conversation.ATTRIBUTE_PINNED_ON_TOP, false))
+                .compare(lastMessageTimes.getOrDefault(b.getUuid(), 0L), lastMessageTimes.getOrDefault(a.getUuid(), 0L))
+                .result());
+        return order;
+    }
+
+    /**
+     * Restores only the summary of conversations that have neither unread nor pending messages
+     * and whose summary is small enough to be complete.
+     *
+     * @return the conversations that need their first page restored
+     */
+    private List<Conversation> restoreSummaries(final List<Conversation> conversations) {
+        final long start = SystemClock.elapsedRealtime();
+        final Map<String, DatabaseBackend.ConversationSummary> summaries = databaseBackend.getConversationSummaries(conversations);
+        final List<Conversation> needPage = new ArrayList<>();
+        for (final Conversation conversation : conversations) {
+            final DatabaseBackend.ConversationSummary summary = summaries.get(conversation.getUuid());
+            if (summary == null || !summary.complete || summary.unread > 0 || summary.pending > 0) {
+                needPage.add(conversation);
+            } else {
+                conversation.setSummary(summary.messages);
+            }
+        }
+        recordStartupTiming("summaries", start);
+        Log.d(Config.LOGTAG, "restored " + (conversations.size() - needPage.size()) + " conversations as summary");
+        return needPage;
+    }
+
+    /**
+     * Loads the first page of a conversation that only has its summary in memory. Called when the
+     * conversation is opened.
+     */
+    public void loadSummarizedMessages(final Conversation conversation) {
+        conversation.setLastAccess(SystemClock.elapsedRealtime());
+        if (!conversation.isSummaryOnly()) {
+            return;
+        }
+        mDatabaseReaderExecutor.execute(() -> {
+            if (conversation.addPage(databaseBackend.getMessages(conversation, Config.PAGE_SIZE))) {
+                updateConversationUi();
+            }
+        });
+    }
+
+    private void evictIdleConversations() {
+        if (restoredFromDatabaseLatch.getCount() != 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        mLastEvictionRun.set(now);
+        final Conversation open = mNotificationService.getOpenConversation();
+        int evicted = 0;
+        for (final Conversation conversation : getConversations()) {
+            if (conversation == open) {
+                conversation.setLastAccess(now);
+                continue;
+            }
+            if (conversation.isSummaryOnly()
+                    || now - conversation.getLastAccess() < Config.MESSAGE_EVICTION_AGE
+                    || !conversation.messagesLoaded.get()
+                    || !conversation.isRead()
+                    || conversation.hasPendingMessages()
+                    || mMessageArchiveService.queryInProgress(conversation)) {
+                continue;
+            }
+            conversation.evictToSummary();
+            // the page was read for an anchor that is gone now
+            messagePagePrefetcher.invalidate(conversation);
+            ++evicted;
+        }
+        if (evicted > 0) {
+            Log.d(Config.LOGTAG, "evicted messages of " + evicted + " idle conversations");
+        }
+    }
+
+    private List<Future<?>> restoreMessages(final ExecutorService executor, final List<Conversation> conversations) {
+        final List<Future<?>> futures = new ArrayList<>(conversations.size());
+        for (final Conversation conversation : conversations) {
+            futures.add(executor.submit(() -> restoreMessages(conversation)));
+        }
+        return futures;
+    }
+
+    private static void awaitAll(final List<Future<?>> futures) {
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                Log.e(Config.LOGTAG, "unable to restore from database", e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
     private void restoreMessages(Conversation conversation) {
+        conversation.setLastAccess(SystemClock.elapsedRealtime());
         conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
         conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
         conversation.findUnreadMessagesAndCalls(mNotificationService::pushFromBacklog);
     }
 
+    private void recordStartupTiming(final String stage, final long start) {
+        synchronized (this.startupTimings) {
+            this.startupTimings.put(stage, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * @return the duration in milliseconds of each stage of the restore from database in the
+     * order they finished
+     */
+    public Map<String, Long> getStartupTimings() {
+        synchronized (this.startupTimings) {
+            return new LinkedHashMap<>(this.startupTimings);
+        }
+    }
+
     public void loadPhoneContacts() {
         mContactMergerExecutor.execute(() -> {
             final Map<Jid, JabberIdContact> contacts = JabberIdContact.load(this);
@@ -2190,6 +2361,7 @@ public class XmppConnectionService extends Service {
     }
 
     private void markUuidsAsDeletedFiles(List<String> uuids) {
+        messagePagePrefetcher.invalidateAll();
         boolean deleted = false;
         for (Conversation conversation : getConversations()) {
             deleted |= conversation.markAsDeleted(uuids);
@@ -2203,6 +2375,7 @@ public class XmppConnectionService extends Service {
     }
 
     private void markChangedFiles(List<DatabaseBackend.FilePathInfo> infos) {
+        messagePagePrefetcher.invalidateAll();
         boolean changed = false;
         for (Conversation conversation : getConversations()) {
             changed |= conversation.markAsChanged(infos);
@@ -2221,41 +2394,36 @@ public class XmppConnectionService extends Service {
     }
 
     public void populateWithOrderedConversations(final List<Conversation> list, final boolean includeNoFileUpload, final boolean sort) {
-        final List<String> orderedUuids;
-        if (sort) {
-            orderedUuids = null;
-        } else {
-            orderedUuids = new ArrayList<>();
-            for (Conversation conversation : list) {
-                orderedUuids.add(conversation.getUuid());
+        final List<Conversation> ordered = conversationOrdering.snapshot(getConversations());
+        if (!sort) {
+            // conversations that were already listed keep their relative order; new ones go into
+            // their sorted position
+            final Map<String, Conversation> byUuid = new HashMap<>();
+            for (final Conversation conversation : ordered) {
+                byUuid.put(conversation.getUuid(), conversation);
             }
-        }
-        list.clear();
-        if (includeNoFileUpload) {
-            list.addAll(getConversations());
-        } else {
-            for (Conversation conversation : getConversations()) {
-                if (conversation.getMode() == Conversation.MODE_SINGLE
-                        || (conversation.getAccount().httpUploadAvailable() && conversation.getMucOptions().participating())) {
-                    list.add(conversation);
+            final List<Conversation> previous = new ArrayList<>();
+            final Set<String> previousUuids = new HashSet<>();
+            for (final Conversation conversation : list) {
+                final Conversation current = byUuid.get(conversation.getUuid());
+                if (current != null && previousUuids.add(current.getUuid())) {
+                    previous.add(current);
+                }
+            }
+            int next = 0;
+            for (int i = 0; i < ordered.size(); ++i) {
+                if (previousUuids.contains(ordered.get(i).getUuid())) {
+                    ordered.set(i, previous.get(next++));
                 }
             }
         }
-        try {
-            if (orderedUuids != null) {
-                Collections.sort(list, (a, b) -> {
-                    final int indexA = orderedUuids.indexOf(a.getUuid());
-                    final int indexB = orderedUuids.indexOf(b.getUuid());
-                    if (indexA == -1 || indexB == -1 || indexA == indexB) {
-                        return a.compareTo(b);
-                    }
-                    return indexA - indexB;
-                });
-            } else {
-                Collections.sort(list);
+        list.clear();
+        for (final Conversation conversation : ordered) {
+            if (includeNoFileUpload
+                    || conversation.getMode() == Conversation.MODE_SINGLE
+                    || (conversation.getAccount().httpUploadAvailable() && conversation.getMucOptions().participating())) {
+                list.add(conversation);
             }
-        } catch (IllegalArgumentException e) {
-            //ignore
         }
     }
 
@@ -2268,10 +2436,18 @@ public class XmppConnectionService extends Service {
         Log.d(Config.LOGTAG, "load more messages for " + conversation.getName() + " prior to " + MessageGenerator.getTimestamp(timestamp));
         final Runnable runnable = () -> {
             final Account account = conversation.getAccount();
-            List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp);
+            final Message oldest = conversation.getOldestMessage();
+            // the page of a summarized conversation may have been added since the request
+            final long before = oldest == null ? timestamp : Math.min(timestamp, oldest.getTimeSent());
+            final Message anchor = oldest != null && oldest.getTimeSent() == before ? oldest : null;
+            List<Message> messages = messagePagePrefetcher.take(conversation, anchor);
+            if (messages == null) {
+                messages = databaseBackend.getMessages(conversation, Config.PAGE_SIZE, before, anchor == null ? null : anchor.getUuid());
+            }
             if (messages.size() > 0) {
                 conversation.addAll(0, messages);
                 callback.onMoreMessagesLoaded(messages.size(), conversation);
+                messagePagePrefetcher.prefetch(conversation, messages.get(0));
             } else if (conversation.hasMessagesLeftOnServer()
                     && account.isOnlineAndConnected()
                     && conversation.getLastClearHistory().getTimestamp() == 0) {
@@ -3717,7 +3893,7 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateMessage(Message message, boolean includeBody) {
-        databaseBackend.updateMessage(message, includeBody);
+        databaseBackend.updateMessageDeferred(message, includeBody);
         updateConversationUi();
     }
 
@@ -4259,7 +4435,7 @@ public class XmppConnectionService extends Service {
         }
         for (Conversation conversation : getConversations()) {
             if (conversation.getJid().asBareJid().equals(recipient) && conversation.getAccount() == account) {
-                final Message message = conversation.findSentMessageWithUuidOrRemoteId(uuid);
+                final Message message = findSentMessageWithUuidOrRemoteId(conversation, uuid);
                 if (message != null) {
                     markMessage(message, status, errorMessage);
                 }
@@ -4277,7 +4453,7 @@ public class XmppConnectionService extends Service {
         if (uuid == null) {
             return false;
         } else {
-            final Message message = conversation.findSentMessageWithUuid(uuid);
+            final Message message = findSentMessageWithUuid(conversation, uuid);
             if (message != null) {
                 if (message.getServerMsgId() == null) {
                     message.setServerMsgId(serverMessageId);
@@ -4300,6 +4476,81 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    /**
+     * Looks up a sent message in memory and, if the conversation only has its summary in memory,
+     * in the database. Receipts for messages that are not in memory would otherwise be dropped.
+     */
+    private Message findSentMessageWithUuidOrRemoteId(final Conversation conversation, final String id) {
+        final Message message = conversation.findSentMessageWithUuidOrRemoteId(id);
+        if (message != null || !conversation.isSummaryOnly()) {
+            return message;
+        }
+        final Message stored = databaseBackend.getMessageWithUuidOrRemoteId(conversation, id);
+        if (stored != null && (id.equals(stored.getUuid()) || stored.getStatus() >= Message.STATUS_SEND)) {
+            return stored;
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link #findSentMessageWithUuidOrRemoteId(Conversation, String)} but only matches
+     * the uuid.
+     */
+    public Message findSentMessageWithUuid(final Conversation conversation, final String uuid) {
+        final Message message = conversation.findSentMessageWithUuid(uuid);
+        if (message != null || !conversation.isSummaryOnly()) {
+            return message;
+        }
+        final Message stored = databaseBackend.getMessageWithUuidOrRemoteId(conversation, uuid);
+        return stored != null && uuid.equals(stored.getUuid()) ? stored : null;
+    }
+
+    /**
+     * Looks up the message a correction refers to in memory and, if the conversation only has its
+     * summary in memory and none of the messages there could be corrected, in the database.
+     */
+    public Message findMessageWithRemoteIdAndCounterpart(final Conversation conversation, final String id, final Jid counterpart, final boolean received, final boolean carbon) {
+        final Message message = conversation.findMessageWithRemoteIdAndCounterpart(id, counterpart, received, carbon);
+        if (message != null || !conversation.isSummaryOnly() || conversation.hasCorrectionCandidate(counterpart, received, carbon)) {
+            return message;
+        }
+        final Message stored = databaseBackend.getMessageWithUuidOrRemoteId(conversation, id);
+        if (stored != null
+                && Conversation.isCorrectionCandidate(stored, counterpart, received, carbon)
+                && Conversation.isCorrectable(stored, id)) {
+            return stored;
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link Conversation#findReceivedWithRemoteId(String)} with a database fallback for
+     * conversations that only have their summary in memory.
+     */
+    public Message findReceivedWithRemoteId(final Conversation conversation, final String id) {
+        final Message message = conversation.findReceivedWithRemoteId(id);
+        if (message != null || !conversation.isSummaryOnly()) {
+            return message;
+        }
+        final Message stored = databaseBackend.getMessageWithUuidOrRemoteId(conversation, id);
+        if (stored != null && stored.getStatus() == Message.STATUS_RECEIVED && id.equals(stored.getRemoteMsgId())) {
+            return stored;
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link Conversation#findMessageWithServerMsgId(String)} with a database fallback for
+     * conversations that only have their summary in memory.
+     */
+    public Message findMessageWithServerMsgId(final Conversation conversation, final String id) {
+        final Message message = conversation.findMessageWithServerMsgId(id);
+        if (message != null || !conversation.isSummaryOnly()) {
+            return message;
+        }
+        return databaseBackend.getMessageWithServerMsgId(conversation, id);
+    }
+
     private static boolean isBodyModified(final Message message, final LocalizedContent body) {
         if (body == null || body.content == null) {
             return false;
@@ -4326,7 +4577,7 @@ public class XmppConnectionService extends Service {
         }
         message.setErrorMessage(errorMessage);
         message.setStatus(status);
-        databaseBackend.updateMessage(message, includeBody);
+        databaseBackend.updateMessageDeferred(message, includeBody);
         updateConversationUi();
         if (oldStatus != status && status == Message.STATUS_SEND_FAILED) {
             mNotificationService.pushFailedDelivery(message);
@@ -4512,12 +4763,9 @@ public class XmppConnectionService extends Service {
         }
         final List<Message> readMessages = conversation.markRead(upToUuid);
         if (readMessages.size() > 0) {
-            Runnable runnable = () -> {
-                for (Message message : readMessages) {
-                    databaseBackend.updateMessage(message, false);
-                }
-            };
-            mDatabaseWriterExecutor.execute(runnable);
+            for (final Message message : readMessages) {
+                databaseBackend.updateMessageDeferred(message, false);
+            }
             updateConversationUi();
             updateUnreadCountBadge();
             return readMessages;
@@ -4919,6 +5167,7 @@ public class XmppConnectionService extends Service {
         conversation.setLastClearHistory(clearDate, reference);
         Runnable runnable = () -> {
             databaseBackend.deleteMessagesInConversation(conversation);
+            messagePagePrefetcher.invalidate(conversation);
             databaseBackend.updateConversation(conversation);
         };
         mDatabaseWriterExecutor.execute(runnable);
@@ -5179,6 +5428,7 @@ public class XmppConnectionService extends Service {
         if (mBitmapCache.remove(uuid) != null) {
             Log.d(Config.LOGTAG, "deleted cached preview");
         }
+        fileBackend.evictThumbnail(uuid);
     }
 
     public interface OnMamPreferencesFetched {
@@ -266,7 +266,7 @@ public class ConversationFragment extends XmppFragment
                         int totalItemCount) {
                     toggleScrollDownButton(view);
                     synchronized (ConversationFragment.this.messageList) {
-                        if (firstVisibleItem < 5
+                        if (firstVisibleItem < Config.MESSAGE_PREFETCH_WINDOW
                                 && conversation != null
                                 && conversation.messagesLoaded.compareAndSet(true, false)
                                 && messageList.size() > 0) {
@@ -324,6 +324,8 @@ public class ConversationFragment extends XmppFragment
                                                                             ConversationFragment
                                                                                     .this
                                                                                     .messageList);
+                                                            messageListAdapter.prefetch(
+                                                                    messageList);
                                                             try {
                                                                 updateStatusMessages();
                                                             } catch (IllegalStateException e) {
@@ -2481,6 +2483,7 @@ public class ConversationFragment extends XmppFragment
 
         stopScrolling();
         Log.d(Config.LOGTAG, "reInit(hasExtras=" + hasExtras + ")");
+        activity.xmppConnectionService.loadSummarizedMessages(this.conversation);
 
         if (this.conversation.isRead() && hasExtras) {
             Log.d(Config.LOGTAG, "trimming conversation");
@@ -2829,6 +2832,7 @@ public class ConversationFragment extends XmppFragment
         synchronized (this.messageList) {
             if (this.conversation != null) {
                 conversation.populateWithMessages(this.messageList);
+                this.messageListAdapter.prefetch(this.messageList);
                 updateSnackBar(conversation);
                 updateStatusMessages();
                 if (conversation.getReceivedMessagesCountSinceUuid(lastMessageUuid) != 0) {
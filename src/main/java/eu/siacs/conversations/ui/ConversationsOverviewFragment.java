@@ -124,7 +124,7 @@ public class ConversationsOverviewFragment extends XmppFragment {
 			pendingActionHelper.execute();
 			int position = viewHolder.getLayoutPosition();
 			try {
-				swipedConversation.push(conversations.get(position));
+				swipedConversation.push(conversationsAdapter.getItem(position));
 			} catch (IndexOutOfBoundsException e) {
 				return;
 			}
@@ -410,11 +410,12 @@ public class ConversationsOverviewFragment extends XmppFragment {
 				pendingActionHelper.execute();
 			}
 		}
-		this.conversationsAdapter.notifyDataSetChanged();
-		ScrollState scrollState = pendingScrollState.pop();
-		if (scrollState != null) {
-			setScrollPosition(scrollState);
-		}
+		final ScrollState scrollState = pendingScrollState.pop();
+		this.conversationsAdapter.update(() -> {
+			if (scrollState != null && this.binding != null) {
+				setScrollPosition(scrollState);
+			}
+		});
 	}
 
 	private void setScrollPosition(ScrollState scrollPosition) {
@@ -168,6 +168,7 @@ public class ShareWithActivity extends XmppActivity
         if (xmppConnectionServiceBound) {
             xmppConnectionService.populateWithOrderedConversations(
                     mConversations, this.share.uris.isEmpty(), false);
+            mAdapter.update();
         }
     }
 
@@ -240,6 +241,6 @@ public class ShareWithActivity extends XmppActivity
         // TODO inject desired order to not resort on refresh
         xmppConnectionService.populateWithOrderedConversations(
                 mConversations, this.share != null && this.share.uris.isEmpty(), false);
-        mAdapter.notifyDataSetChanged();
+        mAdapter.update();
     }
 }
@@ -1,6 +1,7 @@
 package eu.siacs.conversations.ui.adapter;
 
 import android.content.res.ColorStateList;
+import android.graphics.Bitmap;
 import android.graphics.Typeface;
 import android.util.Pair;
 import android.view.LayoutInflater;
@@ -9,11 +10,14 @@ import android.view.ViewGroup;
 
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.widget.ImageViewCompat;
 import androidx.databinding.DataBindingUtil;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.color.MaterialColors;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 
 import eu.siacs.conversations.R;
@@ -21,6 +25,7 @@ import eu.siacs.conversations.databinding.ItemConversationBinding;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Conversational;
 import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.entities.Transferable;
 import eu.siacs.conversations.ui.ConversationFragment;
 import eu.siacs.conversations.ui.XmppActivity;
 import eu.siacs.conversations.ui.util.Attachment;
@@ -30,15 +35,34 @@ import eu.siacs.conversations.utils.UIHelper;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.jingle.OngoingRtpSession;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class ConversationAdapter
         extends RecyclerView.Adapter<ConversationAdapter.ConversationViewHolder> {
 
+    private static final int CHANGE_NAME = 1;
+    private static final int CHANGE_UNREAD = 1 << 1;
+    private static final int CHANGE_LAST_MESSAGE = 1 << 2;
+    private static final int CHANGE_TIMESTAMP = 1 << 3;
+    private static final int CHANGE_INDICATORS = 1 << 4;
+    private static final int CHANGE_AVATAR = 1 << 5;
+    private static final int CHANGE_ALL = (1 << 6) - 1;
+
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
     private final XmppActivity activity;
     private final List<Conversation> conversations;
     private OnConversationClickListener listener;
 
+    // what is currently displayed; only touched on the UI thread and replaced, never modified
+    private List<Conversation> items = new ArrayList<>();
+    private List<Row> rows = new ArrayList<>();
+    private int updateRequests = 0;
+    private int modifications = 0;
+
     public ConversationAdapter(XmppActivity activity, List<Conversation> conversations) {
         this.activity = activity;
         this.conversations = conversations;
@@ -55,12 +79,73 @@ public class ConversationAdapter
                         false));
     }
 
+    @Override
+    public void onBindViewHolder(
+            @NonNull ConversationViewHolder viewHolder,
+            int position,
+            @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(viewHolder, position);
+            return;
+        }
+        int changes = 0;
+        for (final Object payload : payloads) {
+            changes |= (Integer) payload;
+        }
+        bind(viewHolder, items.get(position), changes);
+    }
+
     @Override
     public void onBindViewHolder(@NonNull ConversationViewHolder viewHolder, int position) {
-        Conversation conversation = conversations.get(position);
+        bind(viewHolder, items.get(position), CHANGE_ALL);
+    }
+
+    private void bind(
+            final ConversationViewHolder viewHolder,
+            final Conversation conversation,
+            final int changes) {
         if (conversation == null) {
             return;
         }
+        final Message message = conversation.getLatestMessage();
+        final boolean isRead = conversation.isRead();
+        final Conversation.Draft draft = isRead ? conversation.getDraft() : null;
+        if ((changes & CHANGE_NAME) != 0) {
+            bindName(viewHolder, conversation, isRead);
+        }
+        if ((changes & CHANGE_UNREAD) != 0) {
+            final int unreadCount = conversation.unreadCount();
+            if (unreadCount > 0) {
+                viewHolder.binding.unreadCount.setVisibility(View.VISIBLE);
+                viewHolder.binding.unreadCount.setUnreadCount(unreadCount);
+            } else {
+                viewHolder.binding.unreadCount.setVisibility(View.GONE);
+            }
+        }
+        if ((changes & CHANGE_LAST_MESSAGE) != 0) {
+            bindLastMessage(viewHolder, conversation, message, isRead, draft);
+        }
+        if ((changes & CHANGE_INDICATORS) != 0) {
+            bindIndicators(viewHolder, conversation);
+        }
+        if ((changes & CHANGE_TIMESTAMP) != 0) {
+            final long timestamp = draft != null ? draft.getTimestamp() : message.getTimeSent();
+            viewHolder.binding.conversationLastupdate.setText(
+                    UIHelper.readableTimeDifference(activity, timestamp));
+        }
+        if ((changes & CHANGE_AVATAR) != 0) {
+            AvatarWorkerTask.loadAvatar(
+                    conversation,
+                    viewHolder.binding.conversationImage,
+                    R.dimen.avatar_on_conversation_overview);
+        }
+        viewHolder.itemView.setOnClickListener(v -> listener.onConversationClick(v, conversation));
+    }
+
+    private void bindName(
+            final ConversationViewHolder viewHolder,
+            final Conversation conversation,
+            final boolean isRead) {
         CharSequence name = conversation.getName();
         if (name instanceof Jid) {
             viewHolder.binding.conversationName.setText(
@@ -80,10 +165,20 @@ public class ConversationAdapter
                             com.google.android.material.R.attr.colorSurface));
         }
 
-        final Message message = conversation.getLatestMessage();
+        if (isRead) {
+            viewHolder.binding.conversationName.setTypeface(null, Typeface.NORMAL);
+        } else {
+            viewHolder.binding.conversationName.setTypeface(null, Typeface.BOLD);
+        }
+    }
+
+    private void bindLastMessage(
+            final ConversationViewHolder viewHolder,
+            final Conversation conversation,
+            final Message message,
+            final boolean isRead,
+            final Conversation.Draft draft) {
         final int status = message.getStatus();
-        final int unreadCount = conversation.unreadCount();
-        final boolean isRead = conversation.isRead();
         final @DrawableRes Integer messageStatusDrawable =
                 MessageAdapter.getMessageStatusAsDrawable(message, status);
         if (message.getType() == Message.TYPE_RTP_SESSION) {
@@ -114,20 +209,6 @@ public class ConversationAdapter
             }
             viewHolder.binding.messageStatus.setVisibility(View.VISIBLE);
         }
-        final Conversation.Draft draft = isRead ? conversation.getDraft() : null;
-        if (unreadCount > 0) {
-            viewHolder.binding.unreadCount.setVisibility(View.VISIBLE);
-            viewHolder.binding.unreadCount.setUnreadCount(unreadCount);
-        } else {
-            viewHolder.binding.unreadCount.setVisibility(View.GONE);
-        }
-
-        if (isRead) {
-            viewHolder.binding.conversationName.setTypeface(null, Typeface.NORMAL);
-        } else {
-            viewHolder.binding.conversationName.setTypeface(null, Typeface.BOLD);
-        }
-
         if (draft != null) {
             viewHolder.binding.conversationLastmsgImg.setVisibility(View.GONE);
             viewHolder.binding.conversationLastmsg.setText(draft.getMessage());
@@ -195,7 +276,24 @@ public class ConversationAdapter
                 viewHolder.binding.senderName.setVisibility(View.GONE);
             }
         }
+    }
+
+    private void bindIndicators(
+            final ConversationViewHolder viewHolder, final Conversation conversation) {
+        final @DrawableRes int notificationStatus = getNotificationStatus(conversation);
+        if (notificationStatus == 0) {
+            viewHolder.binding.notificationStatus.setVisibility(View.GONE);
+        } else {
+            viewHolder.binding.notificationStatus.setVisibility(View.VISIBLE);
+            viewHolder.binding.notificationStatus.setImageResource(notificationStatus);
+        }
+        viewHolder.binding.pinnedOnTop.setVisibility(
+                conversation.getBooleanAttribute(Conversation.ATTRIBUTE_PINNED_ON_TOP, false)
+                        ? View.VISIBLE
+                        : View.GONE);
+    }
 
+    private @DrawableRes int getNotificationStatus(final Conversation conversation) {
         final Optional<OngoingRtpSession> ongoingCall;
         if (conversation.getMode() == Conversational.MODE_MULTI) {
             ongoingCall = Optional.absent();
@@ -205,53 +303,76 @@ public class ConversationAdapter
                             .getJingleConnectionManager()
                             .getOngoingRtpConnection(conversation.getContact());
         }
-
         if (ongoingCall.isPresent()) {
-            viewHolder.binding.notificationStatus.setVisibility(View.VISIBLE);
-            viewHolder.binding.notificationStatus.setImageResource(
-                    R.drawable.ic_phone_in_talk_24dp);
-        } else {
-            final long muted_till =
-                    conversation.getLongAttribute(Conversation.ATTRIBUTE_MUTED_TILL, 0);
-            if (muted_till == Long.MAX_VALUE) {
-                viewHolder.binding.notificationStatus.setVisibility(View.VISIBLE);
-                viewHolder.binding.notificationStatus.setImageResource(
-                        R.drawable.ic_notifications_off_24dp);
-            } else if (muted_till >= System.currentTimeMillis()) {
-                viewHolder.binding.notificationStatus.setVisibility(View.VISIBLE);
-                viewHolder.binding.notificationStatus.setImageResource(
-                        R.drawable.ic_notifications_paused_24dp);
-            } else if (conversation.alwaysNotify()) {
-                viewHolder.binding.notificationStatus.setVisibility(View.GONE);
-            } else {
-                viewHolder.binding.notificationStatus.setVisibility(View.VISIBLE);
-                viewHolder.binding.notificationStatus.setImageResource(
-                        R.drawable.ic_notifications_none_24dp);
-            }
+            return R.drawable.ic_phone_in_talk_24dp;
         }
-
-        long timestamp;
-        if (draft != null) {
-            timestamp = draft.getTimestamp();
+        final long muted_till = conversation.getLongAttribute(Conversation.ATTRIBUTE_MUTED_TILL, 0);
+        if (muted_till == Long.MAX_VALUE) {
+            return R.drawable.ic_notifications_off_24dp;
+        } else if (muted_till >= System.currentTimeMillis()) {
+            return R.drawable.ic_notifications_paused_24dp;
+        } else if (conversation.alwaysNotify()) {
+            return 0;
         } else {
-            timestamp = conversation.getLatestMessage().getTimeSent();
+            return R.drawable.ic_notifications_none_24dp;
         }
-        viewHolder.binding.pinnedOnTop.setVisibility(
-                conversation.getBooleanAttribute(Conversation.ATTRIBUTE_PINNED_ON_TOP, false)
-                        ? View.VISIBLE
-                        : View.GONE);
-        viewHolder.binding.conversationLastupdate.setText(
-                UIHelper.readableTimeDifference(activity, timestamp));
-        AvatarWorkerTask.loadAvatar(
-                conversation,
-                viewHolder.binding.conversationImage,
-                R.dimen.avatar_on_conversation_overview);
-        viewHolder.itemView.setOnClickListener(v -> listener.onConversationClick(v, conversation));
     }
 
     @Override
     public int getItemCount() {
-        return conversations.size();
+        return items.size();
+    }
+
+    public Conversation getItem(final int position) {
+        return items.get(position);
+    }
+
+    /**
+     * Brings the displayed list in line with the backing list. The state of every row is captured
+     * and compared to what is currently displayed on a background thread; only rows that have
+     * actually changed get rebound, and only the parts of them that have changed.
+     */
+    public void update() {
+        update(null);
+    }
+
+    /**
+     * @param onUpdated runs on the UI thread once the changes have been dispatched
+     */
+    public void update(@Nullable final Runnable onUpdated) {
+        final List<Conversation> conversations = new ArrayList<>(this.conversations);
+        final List<Row> displayedRows = this.rows;
+        final Conversation selected = ConversationFragment.getConversation(activity);
+        final int avatarSize =
+                (int) activity.getResources().getDimension(R.dimen.avatar_on_conversation_overview);
+        final int request = ++this.updateRequests;
+        final int modification = this.modifications;
+        DIFF_EXECUTOR.execute(
+                () -> {
+                    final List<Row> rows = new ArrayList<>(conversations.size());
+                    for (final Conversation conversation : conversations) {
+                        rows.add(Row.of(this, conversation, conversation == selected, avatarSize));
+                    }
+                    final DiffUtil.DiffResult diff =
+                            DiffUtil.calculateDiff(new RowDiff(displayedRows, rows));
+                    activity.runOnUiThread(
+                            () -> {
+                                if (request != this.updateRequests) {
+                                    // a more recent update is going to replace this one
+                                    return;
+                                }
+                                if (modification != this.modifications) {
+                                    update(onUpdated);
+                                    return;
+                                }
+                                this.items = conversations;
+                                this.rows = rows;
+                                diff.dispatchUpdatesTo(this);
+                                if (onUpdated != null) {
+                                    onUpdated.run();
+                                }
+                            });
+                });
     }
 
     public void setConversationClickListener(OnConversationClickListener listener) {
@@ -259,12 +380,27 @@ public class ConversationAdapter
     }
 
     public void insert(Conversation c, int position) {
-        conversations.add(position, c);
-        notifyDataSetChanged();
+        conversations.add(Math.min(position, conversations.size()), c);
+        final List<Conversation> items = new ArrayList<>(this.items);
+        final List<Row> rows = new ArrayList<>(this.rows);
+        final int index = Math.min(position, items.size());
+        items.add(index, c);
+        rows.add(index, null);
+        this.items = items;
+        this.rows = rows;
+        ++this.modifications;
+        notifyItemInserted(index);
     }
 
     public void remove(Conversation conversation, int position) {
         conversations.remove(conversation);
+        final List<Conversation> items = new ArrayList<>(this.items);
+        final List<Row> rows = new ArrayList<>(this.rows);
+        items.remove(position);
+        rows.remove(position);
+        this.items = items;
+        this.rows = rows;
+        ++this.modifications;
         notifyItemRemoved(position);
     }
 
@@ -272,6 +408,139 @@ public class ConversationAdapter
         void onConversationClick(View view, Conversation conversation);
     }
 
+    /** The state of a conversation as it is shown in the list. */
+    private static final class Row {
+        private final String uuid;
+        private final String name;
+        private final boolean selected;
+        private final boolean read;
+        private final int unreadCount;
+        private final Message message;
+        private final int status;
+        private final String body;
+        private final boolean deleted;
+        private final int transferStatus;
+        private final int transferProgress;
+        private final String draft;
+        private final String timestamp;
+        private final int notificationStatus;
+        private final boolean pinned;
+        private final Bitmap avatar;
+
+        private Row(
+                final Conversation conversation,
+                final boolean selected,
+                final Message message,
+                final Conversation.Draft draft,
+                final String timestamp,
+                final int notificationStatus,
+                final Bitmap avatar) {
+            final Transferable transferable = message.getTransferable();
+            this.uuid = conversation.getUuid();
+            this.name = conversation.getName().toString();
+            this.selected = selected;
+            this.read = conversation.isRead();
+            this.unreadCount = conversation.unreadCount();
+            this.message = message;
+            this.status = message.getStatus();
+            this.body = message.getBody();
+            this.deleted = message.isDeleted();
+            this.transferStatus = transferable == null ? -1 : transferable.getStatus();
+            this.transferProgress = transferable == null ? -1 : transferable.getProgress();
+            this.draft = draft == null ? null : draft.getMessage();
+            this.timestamp = timestamp;
+            this.notificationStatus = notificationStatus;
+            this.pinned =
+                    conversation.getBooleanAttribute(Conversation.ATTRIBUTE_PINNED_ON_TOP, false);
+            this.avatar = avatar;
+        }
+
+        private static Row of(
+                final ConversationAdapter adapter,
+                final Conversation conversation,
+                final boolean selected,
+                final int avatarSize) {
+            final XmppActivity activity = adapter.activity;
+            final Message message = conversation.getLatestMessage();
+            final Conversation.Draft draft = conversation.isRead() ? conversation.getDraft() : null;
+            final long timestamp = draft != null ? draft.getTimestamp() : message.getTimeSent();
+            return new Row(
+                    conversation,
+                    selected,
+                    message,
+                    draft,
+                    UIHelper.readableTimeDifference(activity, timestamp),
+                    adapter.getNotificationStatus(conversation),
+                    activity.avatarService().get(conversation, avatarSize, true));
+        }
+
+        private int changes(final Row other) {
+            int changes = 0;
+            if (!name.equals(other.name) || selected != other.selected || read != other.read) {
+                changes |= CHANGE_NAME;
+            }
+            if (unreadCount != other.unreadCount) {
+                changes |= CHANGE_UNREAD;
+            }
+            if (message != other.message
+                    || status != other.status
+                    || !Objects.equal(body, other.body)
+                    || deleted != other.deleted
+                    || transferStatus != other.transferStatus
+                    || transferProgress != other.transferProgress
+                    || !Objects.equal(draft, other.draft)
+                    || read != other.read) {
+                changes |= CHANGE_LAST_MESSAGE;
+            }
+            if (!timestamp.equals(other.timestamp)) {
+                changes |= CHANGE_TIMESTAMP;
+            }
+            if (notificationStatus != other.notificationStatus || pinned != other.pinned) {
+                changes |= CHANGE_INDICATORS;
+            }
+            if (avatar != other.avatar) {
+                changes |= CHANGE_AVATAR;
+            }
+            return changes;
+        }
+    }
+
+    private static final class RowDiff extends DiffUtil.Callback {
+        private final List<Row> before;
+        private final List<Row> after;
+
+        private RowDiff(final List<Row> before, final List<Row> after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return before.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return after.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(final int oldItemPosition, final int newItemPosition) {
+            final Row before = this.before.get(oldItemPosition);
+            return before != null && before.uuid.equals(after.get(newItemPosition).uuid);
+        }
+
+        @Override
+        public boolean areContentsTheSame(final int oldItemPosition, final int newItemPosition) {
+            return before.get(oldItemPosition).changes(after.get(newItemPosition)) == 0;
+        }
+
+        @Override
+        public Object getChangePayload(final int oldItemPosition, final int newItemPosition) {
+            return before.get(oldItemPosition).changes(after.get(newItemPosition));
+        }
+    }
+
     public static class ConversationViewHolder extends RecyclerView.ViewHolder {
         public final ItemConversationBinding binding;
 
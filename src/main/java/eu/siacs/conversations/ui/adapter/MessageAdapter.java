@@ -2,6 +2,7 @@ package eu.siacs.conversations.ui.adapter;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
@@ -10,12 +11,15 @@ import android.os.Build;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
 import android.text.format.DateUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.StyleSpan;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
@@ -92,10 +96,15 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 import kotlin.coroutines.Continuation;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -108,9 +117,19 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private static final int STATUS = 2;
     private static final int DATE_SEPARATOR = 3;
     private static final int RTP_SESSION = 4;
+    private static final Executor RENDER_EXECUTOR = Executors.newSingleThreadExecutor();
+
     private final XmppActivity activity;
     private final AudioPlayer audioPlayer;
-    private List<String> highlightedTerm = null;
+    private volatile List<String> highlightedTerm = null;
+    private final LruCache<String, Spanned> renderedBodies =
+            new LruCache<>(Config.RENDERED_MESSAGE_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(final String key, final Spanned value) {
+                    return key.length() + value.length();
+                }
+            };
+    private final Map<BubbleColor, Palette> palettes = new ConcurrentHashMap<>();
     private final DisplayMetrics metrics;
     private OnContactPictureClicked mOnContactPictureClickedListener;
     private OnContactPictureLongClicked mOnContactPictureLongClickedListener;
@@ -393,11 +412,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     }
 
     private void applyQuoteSpan(
-            final TextView textView,
-            SpannableStringBuilder body,
-            int start,
-            int end,
-            final BubbleColor bubbleColor) {
+            SpannableStringBuilder body, int start, int end, final Palette palette) {
         if (start > 1 && !"\n\n".equals(body.subSequence(start - 2, start).toString())) {
             body.insert(start++, "\n");
             body.setSpan(
@@ -408,9 +423,8 @@ public class MessageAdapter extends ArrayAdapter<Message> {
             body.insert(end, "\n");
             body.setSpan(new DividerSpan(false), end, end + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
-        final DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
         body.setSpan(
-                new QuoteSpan(bubbleToOnSurfaceVariant(textView, bubbleColor), metrics),
+                new QuoteSpan(palette.secondary, metrics),
                 start,
                 end,
                 Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
@@ -420,10 +434,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
      * Applies QuoteSpan to group of lines which starts with > or » characters. Appends likebreaks
      * and applies DividerSpan to them to show a padding between quote and text.
      */
-    private boolean handleTextQuotes(
-            final TextView textView,
-            final SpannableStringBuilder body,
-            final BubbleColor bubbleColor) {
+    private boolean handleTextQuotes(final SpannableStringBuilder body, final Palette palette) {
         boolean startsWithQuote = false;
         int quoteDepth = 1;
         while (QuoteHelper.bodyContainsQuoteStart(body) && quoteDepth <= Config.QUOTE_MAX_DEPTH) {
@@ -442,7 +453,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
                             if (i == 0) startsWithQuote = true;
                         } else if (quoteStart >= 0) {
                             // Line start without quote, apply spans there
-                            applyQuoteSpan(textView, body, quoteStart, i - 1, bubbleColor);
+                            applyQuoteSpan(body, quoteStart, i - 1, palette);
                             quoteStart = -1;
                         }
                     }
@@ -467,7 +478,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
             }
             if (quoteStart >= 0) {
                 // Apply spans to finishing open quote
-                applyQuoteSpan(textView, body, quoteStart, body.length(), bubbleColor);
+                applyQuoteSpan(body, quoteStart, body.length(), palette);
             }
             quoteDepth++;
         }
@@ -485,113 +496,237 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         viewHolder.messageBody.setTypeface(null, Typeface.NORMAL);
 
         if (message.getBody() != null) {
-            final String nick = UIHelper.getMessageDisplayName(message);
-            SpannableStringBuilder body = message.getMergedBody();
-            boolean hasMeCommand = message.hasMeCommand();
-            if (hasMeCommand) {
-                body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
-            }
-            if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
-                body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
-                body.append("\u2026");
-            }
-            Message.MergeSeparator[] mergeSeparators =
-                    body.getSpans(0, body.length(), Message.MergeSeparator.class);
-            for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
-                int start = body.getSpanStart(mergeSeparator);
-                int end = body.getSpanEnd(mergeSeparator);
-                body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            viewHolder.messageBody.setAutoLinkMask(0);
+            viewHolder.messageBody.setText(getRenderedBody(message, bubbleColor));
+            viewHolder.messageBody.setMovementMethod(ClickableMovementMethod.getInstance());
+        } else {
+            viewHolder.messageBody.setText("");
+            viewHolder.messageBody.setTextIsSelectable(false);
+        }
+    }
+
+    /**
+     * Returns the styled and linkified body of a text message. Rendering runs several regular
+     * expressions over the text, so results are kept in {@link #renderedBodies} under a key made
+     * of everything they depend on; an edit, a merge, another bubble color or a new search term
+     * lead to a new key.
+     */
+    private CharSequence getRenderedBody(final Message message, final BubbleColor bubbleColor) {
+        final List<String> highlightedTerm = this.highlightedTerm;
+        final String key = getRenderedBodyKey(message, bubbleColor, highlightedTerm);
+        final Spanned cached = renderedBodies.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final Spanned rendered =
+                new SpannedString(
+                        renderBody(
+                                message,
+                                message.getMergedBody(),
+                                getPalette(bubbleColor),
+                                highlightedTerm));
+        renderedBodies.put(key, rendered);
+        return rendered;
+    }
+
+    private String getRenderedBodyKey(
+            final Message message,
+            final BubbleColor bubbleColor,
+            final List<String> highlightedTerm) {
+        final StringBuilder key = new StringBuilder(message.getUuid());
+        key.append('\u0000').append(bubbleColor.ordinal());
+        key.append('\u0000').append(message.getStatus());
+        if (message.hasMeCommand()) {
+            key.append('\u0000').append(UIHelper.getMessageDisplayName(message));
+        }
+        if (message.isPrivateMessage()) {
+            final Jid counterpart = message.getCounterpart();
+            key.append('\u0000').append(counterpart == null ? null : counterpart.getResource());
+        }
+        if (message.getConversation() instanceof Conversation conversation
+                && conversation.getMode() == Conversation.MODE_MULTI) {
+            key.append('\u0000').append(conversation.getMucOptions().getActualNick());
+        }
+        if (highlightedTerm != null) {
+            key.append('\u0000').append(highlightedTerm);
+        }
+        // identifies the merged body without copying its text. uuids change on corrections, the
+        // hash covers bodies that are replaced in place
+        Message current = message;
+        while (current != null) {
+            key.append('\u0000').append(current.getUuid());
+            if (current.edited()) {
+                key.append('/').append(current.getEditedId());
             }
-            boolean startsWithQuote = handleTextQuotes(viewHolder.messageBody, body, bubbleColor);
-            if (!message.isPrivateMessage()) {
-                if (hasMeCommand) {
-                    body.setSpan(
-                            new StyleSpan(Typeface.BOLD_ITALIC),
-                            0,
-                            nick.length(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            } else {
-                String privateMarker;
-                if (message.getStatus() <= Message.STATUS_RECEIVED) {
-                    privateMarker = activity.getString(R.string.private_message);
-                } else {
-                    Jid cp = message.getCounterpart();
-                    privateMarker =
-                            activity.getString(
-                                    R.string.private_message_to,
-                                    Strings.nullToEmpty(cp == null ? null : cp.getResource()));
-                }
-                body.insert(0, privateMarker);
-                int privateMarkerIndex = privateMarker.length();
-                if (startsWithQuote) {
-                    body.insert(privateMarkerIndex, "\n\n");
-                    body.setSpan(
-                            new DividerSpan(false),
-                            privateMarkerIndex,
-                            privateMarkerIndex + 2,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                } else {
-                    body.insert(privateMarkerIndex, " ");
-                }
+            key.append('/').append(Strings.nullToEmpty(current.getBody()).hashCode());
+            final Message next = current.next();
+            current = current.mergeable(next) ? next : null;
+        }
+        return key.toString();
+    }
+
+    private SpannableStringBuilder renderBody(
+            final Message message,
+            SpannableStringBuilder body,
+            final Palette palette,
+            final List<String> highlightedTerm) {
+        final String nick = UIHelper.getMessageDisplayName(message);
+        boolean hasMeCommand = message.hasMeCommand();
+        if (hasMeCommand) {
+            body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
+        }
+        if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
+            body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
+            body.append("\u2026");
+        }
+        Message.MergeSeparator[] mergeSeparators =
+                body.getSpans(0, body.length(), Message.MergeSeparator.class);
+        for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
+            int start = body.getSpanStart(mergeSeparator);
+            int end = body.getSpanEnd(mergeSeparator);
+            body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        boolean startsWithQuote = handleTextQuotes(body, palette);
+        if (!message.isPrivateMessage()) {
+            if (hasMeCommand) {
                 body.setSpan(
-                        new ForegroundColorSpan(
-                                bubbleToOnSurfaceVariant(viewHolder.messageBody, bubbleColor)),
+                        new StyleSpan(Typeface.BOLD_ITALIC),
                         0,
-                        privateMarkerIndex,
+                        nick.length(),
                         Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        } else {
+            String privateMarker;
+            if (message.getStatus() <= Message.STATUS_RECEIVED) {
+                privateMarker = activity.getString(R.string.private_message);
+            } else {
+                Jid cp = message.getCounterpart();
+                privateMarker =
+                        activity.getString(
+                                R.string.private_message_to,
+                                Strings.nullToEmpty(cp == null ? null : cp.getResource()));
+            }
+            body.insert(0, privateMarker);
+            int privateMarkerIndex = privateMarker.length();
+            if (startsWithQuote) {
+                body.insert(privateMarkerIndex, "\n\n");
                 body.setSpan(
-                        new StyleSpan(Typeface.BOLD),
-                        0,
+                        new DividerSpan(false),
                         privateMarkerIndex,
+                        privateMarkerIndex + 2,
                         Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                if (hasMeCommand) {
-                    body.setSpan(
-                            new StyleSpan(Typeface.BOLD_ITALIC),
-                            privateMarkerIndex + 1,
-                            privateMarkerIndex + 1 + nick.length(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+            } else {
+                body.insert(privateMarkerIndex, " ");
             }
-            if (message.getConversation().getMode() == Conversation.MODE_MULTI
-                    && message.getStatus() == Message.STATUS_RECEIVED) {
-                if (message.getConversation() instanceof Conversation conversation) {
-                    Pattern pattern =
-                            NotificationService.generateNickHighlightPattern(
-                                    conversation.getMucOptions().getActualNick());
-                    Matcher matcher = pattern.matcher(body);
-                    while (matcher.find()) {
-                        body.setSpan(
-                                new StyleSpan(Typeface.BOLD),
-                                matcher.start(),
-                                matcher.end(),
-                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
-                }
+            body.setSpan(
+                    new ForegroundColorSpan(palette.secondary),
+                    0,
+                    privateMarkerIndex,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            body.setSpan(
+                    new StyleSpan(Typeface.BOLD),
+                    0,
+                    privateMarkerIndex,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (hasMeCommand) {
+                body.setSpan(
+                        new StyleSpan(Typeface.BOLD_ITALIC),
+                        privateMarkerIndex + 1,
+                        privateMarkerIndex + 1 + nick.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
-            Matcher matcher = Emoticons.getEmojiPattern(body).matcher(body);
-            while (matcher.find()) {
-                if (matcher.start() < matcher.end()) {
+        }
+        if (message.getConversation().getMode() == Conversation.MODE_MULTI
+                && message.getStatus() == Message.STATUS_RECEIVED) {
+            if (message.getConversation() instanceof Conversation conversation) {
+                Pattern pattern =
+                        NotificationService.generateNickHighlightPattern(
+                                conversation.getMucOptions().getActualNick());
+                Matcher matcher = pattern.matcher(body);
+                while (matcher.find()) {
                     body.setSpan(
-                            new RelativeSizeSpan(1.2f),
+                            new StyleSpan(Typeface.BOLD),
                             matcher.start(),
                             matcher.end(),
                             Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                 }
             }
+        }
+        Matcher matcher = Emoticons.getEmojiPattern(body).matcher(body);
+        while (matcher.find()) {
+            if (matcher.start() < matcher.end()) {
+                body.setSpan(
+                        new RelativeSizeSpan(1.2f),
+                        matcher.start(),
+                        matcher.end(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+
+        StylingHelper.format(body, palette.text);
+        MyLinkify.addLinks(body, true);
+        if (highlightedTerm != null) {
+            StylingHelper.highlight(
+                    body,
+                    highlightedTerm,
+                    palette.highlightBackground,
+                    palette.highlightForeground);
+        }
+        return body;
+    }
 
-            StylingHelper.format(body, viewHolder.messageBody.getCurrentTextColor());
-            MyLinkify.addLinks(body, true);
-            if (highlightedTerm != null) {
-                StylingHelper.highlight(viewHolder.messageBody, body, highlightedTerm);
+    /**
+     * Renders the bodies of the given text messages into {@link #renderedBodies} on a background
+     * thread, so that they are ready by the time the user scrolls to them.
+     */
+    public void prefetch(final List<Message> messages) {
+        final List<Message> textMessages = new ArrayList<>();
+        for (final Message message : messages) {
+            if (isTextMessage(message)) {
+                textMessages.add(message);
             }
-            viewHolder.messageBody.setAutoLinkMask(0);
-            viewHolder.messageBody.setText(body);
-            viewHolder.messageBody.setMovementMethod(ClickableMovementMethod.getInstance());
-        } else {
-            viewHolder.messageBody.setText("");
-            viewHolder.messageBody.setTextIsSelectable(false);
         }
+        if (textMessages.isEmpty()) {
+            return;
+        }
+        // colors are resolved from the theme on the UI thread
+        for (final BubbleColor bubbleColor : BubbleColor.values()) {
+            getPalette(bubbleColor);
+        }
+        RENDER_EXECUTOR.execute(
+                () -> {
+                    for (final Message message : Lists.reverse(textMessages)) {
+                        getRenderedBody(message, getBubbleColor(message, getItemViewType(message)));
+                    }
+                });
+    }
+
+    private static boolean isTextMessage(final Message message) {
+        final Transferable transferable = message.getTransferable();
+        final int encryption = message.getEncryption();
+        return message.getBody() != null
+                && (message.getType() == Message.TYPE_TEXT
+                        || message.getType() == Message.TYPE_PRIVATE)
+                && !message.isDeleted()
+                && transferable == null
+                && !MessageUtils.unInitiatedButKnownSize(message)
+                && encryption != Message.ENCRYPTION_PGP
+                && encryption != Message.ENCRYPTION_DECRYPTION_FAILED
+                && encryption != Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE
+                && encryption != Message.ENCRYPTION_AXOLOTL_FAILED
+                && !message.isGeoUri()
+                && !message.bodyIsOnlyEmojis()
+                && !message.treatAsDownloadable();
+    }
+
+    private Palette getPalette(final BubbleColor bubbleColor) {
+        final Palette cached = palettes.get(bubbleColor);
+        if (cached != null) {
+            return cached;
+        }
+        final Palette palette = Palette.of(activity, bubbleColor);
+        palettes.put(bubbleColor, palette);
+        return palette;
     }
 
     private void displayDownloadableMessage(
@@ -739,6 +874,22 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         }
     }
 
+    private BubbleColor getBubbleColor(final Message message, final int type) {
+        final boolean colorfulBackground = this.bubbleDesign.colorfulChatBubbles;
+        if (type == RECEIVED) {
+            final boolean omemoEncryption = message.getEncryption() == Message.ENCRYPTION_AXOLOTL;
+            final boolean isInValidSession =
+                    message.isValidInSession() && (!omemoEncryption || message.isTrusted());
+            if (isInValidSession) {
+                return colorfulBackground ? BubbleColor.SECONDARY : BubbleColor.SURFACE;
+            } else {
+                return BubbleColor.WARNING;
+            }
+        } else {
+            return colorfulBackground ? BubbleColor.TERTIARY : BubbleColor.SURFACE_HIGH;
+        }
+    }
+
     @Override
     public View getView(final int position, View view, final @NonNull ViewGroup parent) {
         final Message message = getItem(position);
@@ -819,17 +970,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
             }
         }
 
-        final boolean colorfulBackground = this.bubbleDesign.colorfulChatBubbles;
-        final BubbleColor bubbleColor;
-        if (type == RECEIVED) {
-            if (isInValidSession) {
-                bubbleColor = colorfulBackground ? BubbleColor.SECONDARY : BubbleColor.SURFACE;
-            } else {
-                bubbleColor = BubbleColor.WARNING;
-            }
-        } else {
-            bubbleColor = colorfulBackground ? BubbleColor.TERTIARY : BubbleColor.SURFACE_HIGH;
-        }
+        final BubbleColor bubbleColor = getBubbleColor(message, type);
 
         if (type == DATE_SEPARATOR) {
             if (UIHelper.today(message.getTimeSent())) {
@@ -1294,6 +1435,46 @@ public class MessageAdapter extends ArrayAdapter<Message> {
                 Arrays.asList(BubbleColor.SURFACE, BubbleColor.SURFACE_HIGH);
     }
 
+    /** The colors message bodies in a bubble of a certain color are rendered with. */
+    private static final class Palette {
+        private final @ColorInt int text;
+        private final @ColorInt int secondary;
+        private final @ColorInt int highlightBackground;
+        private final @ColorInt int highlightForeground;
+
+        private Palette(
+                final @ColorInt int text,
+                final @ColorInt int secondary,
+                final @ColorInt int highlightBackground,
+                final @ColorInt int highlightForeground) {
+            this.text = text;
+            this.secondary = secondary;
+            this.highlightBackground = highlightBackground;
+            this.highlightForeground = highlightForeground;
+        }
+
+        private static Palette of(final Context context, final BubbleColor bubbleColor) {
+            final @AttrRes int secondary;
+            if (BubbleColor.SURFACES.contains(bubbleColor)) {
+                secondary = com.google.android.material.R.attr.colorOnSurfaceVariant;
+            } else {
+                secondary = bubbleToOnSurface(bubbleColor);
+            }
+            final String component = MessageAdapter.class.getSimpleName();
+            return new Palette(
+                    MaterialColors.getColor(context, bubbleToOnSurface(bubbleColor), component),
+                    MaterialColors.getColor(context, secondary, component),
+                    MaterialColors.getColor(
+                            context,
+                            com.google.android.material.R.attr.colorPrimaryFixedDim,
+                            component),
+                    MaterialColors.getColor(
+                            context,
+                            com.google.android.material.R.attr.colorOnPrimaryFixed,
+                            component));
+        }
+    }
+
     private static class BubbleDesign {
         public final boolean colorfulChatBubbles;
         public final boolean largeFont;
@@ -23,6 +23,7 @@ import de.gultsch.minidns.ResolverResult;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.Conversations;
+import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.xmpp.Jid;
 
 import org.minidns.dnsmessage.Question;
@@ -40,10 +41,13 @@ import org.minidns.record.SRV;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -76,6 +80,10 @@ public class Resolver {
 
     private static final ExecutorService DNS_QUERY_EXECUTOR = Executors.newFixedThreadPool(12);
 
+    // guarded by CACHE; also guards PENDING
+    private static final Map<String, CacheEntry> CACHE = new HashMap<>();
+    private static final Map<String, ListenableFuture<List<Result>>> PENDING = new HashMap<>();
+
     public static final int DEFAULT_PORT_XMPP = 5222;
 
     private static final String DIRECT_TLS_SERVICE = "_xmpps-client";
@@ -103,52 +111,216 @@ public class Resolver {
         }
     }
 
-    public static void clearCache() {}
+    /**
+     * Marks all cached results as stale. They are still handed out for the next connection attempt
+     * (to not wait for DNS after a network handover) but are revalidated in the background.
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.replaceAll((domain, entry) -> entry.asStale());
+        }
+    }
+
+    /**
+     * Moves results that have been connected to before to the front, fastest first. The order of
+     * the other results is kept.
+     *
+     * @param stored results loaded from the database, carrying their latency
+     * @return a new list; the given results are not modified
+     */
+    public static List<Result> orderByStatistics(
+            final List<Result> results, final List<Result> stored) {
+        final Map<Result, Long> latencies = new HashMap<>();
+        for (final Result result : stored) {
+            if (result.latency >= 0) {
+                latencies.put(result, result.latency);
+            }
+        }
+        if (latencies.isEmpty()) {
+            return new ArrayList<>(results);
+        }
+        final List<Result> known = new ArrayList<>();
+        final List<Result> unknown = new ArrayList<>();
+        for (final Result result : results) {
+            (latencies.containsKey(result) ? known : unknown).add(result);
+        }
+        Collections.sort(known, (a, b) -> Long.compare(latencies.get(a), latencies.get(b)));
+        known.addAll(unknown);
+        return known;
+    }
 
     public static boolean useDirectTls(final int port) {
         return port == 443 || port == 5223;
     }
 
+    /**
+     * Resolves the domain using the cache. Fresh entries are returned right away. Entries whose TTL
+     * has expired less than {@link Config#RESOLVER_MAX_STALE} ago are returned as well while they
+     * are being revalidated in the background. Older entries are only used if the lookup fails.
+     */
     public static List<Result> resolve(final String domain) {
         final List<Result> ipResults = fromIpAddress(domain);
         if (!ipResults.isEmpty()) {
             return ipResults;
         }
-
-        final var startTls = resolveSrvAsFuture(domain, false);
-        final var directTls = resolveSrvAsFuture(domain, true);
-
-        final var combined = merge(ImmutableList.of(startTls, directTls));
-
-        final var combinedWithFallback =
-                Futures.transformAsync(
-                        combined,
-                        results -> {
-                            if (results.isEmpty()) {
-                                return resolveNoSrvAsFuture(DnsName.from(domain), true);
-                            } else {
-                                return Futures.immediateFuture(results);
-                            }
-                        },
-                        MoreExecutors.directExecutor());
-        final var orderedFuture =
-                Futures.transform(
-                        combinedWithFallback,
-                        all -> Ordering.from(RESULT_COMPARATOR).immutableSortedCopy(all),
-                        MoreExecutors.directExecutor());
+        final CacheEntry cached = getCacheEntry(domain);
+        final long now = System.currentTimeMillis();
+        if (cached != null && cached.isFresh(now)) {
+            Log.d(
+                    Config.LOGTAG,
+                    "Resolver (" + cached.results.size() + ", cached): " + cached.results);
+            return cached.results;
+        }
+        final ListenableFuture<List<Result>> orderedFuture = resolveAndCache(domain);
+        if (cached != null && now < cached.expires + Config.RESOLVER_MAX_STALE) {
+            Log.d(
+                    Config.LOGTAG,
+                    "Resolver (" + cached.results.size() + ", revalidating): " + cached.results);
+            return cached.results;
+        }
+        final List<Result> fallback = cached == null ? Collections.emptyList() : cached.results;
         try {
             final var ordered = orderedFuture.get();
             Log.d(Config.LOGTAG, "Resolver (" + ordered.size() + "): " + ordered);
-            return ordered;
+            return ordered.isEmpty() ? fallback : ordered;
         } catch (final ExecutionException e) {
             Log.d(Config.LOGTAG, "error resolving DNS", e);
-            return Collections.emptyList();
+            return fallback;
         } catch (final InterruptedException e) {
             Log.d(Config.LOGTAG, "DNS resolution interrupted");
             return Collections.emptyList();
         }
     }
 
+    /**
+     * @return the lookup that is currently running for the domain or a new one. Successful lookups
+     *     replace the cached results.
+     */
+    private static ListenableFuture<List<Result>> resolveAndCache(final String domain) {
+        synchronized (CACHE) {
+            final ListenableFuture<List<Result>> pending = PENDING.get(domain);
+            if (pending != null) {
+                return pending;
+            }
+            final var startTls = resolveSrvAsFuture(domain, false);
+            final var directTls = resolveSrvAsFuture(domain, true);
+
+            final var combined = merge(ImmutableList.of(startTls, directTls));
+
+            final var combinedWithFallback =
+                    Futures.transformAsync(
+                            combined,
+                            results -> {
+                                if (results.isEmpty()) {
+                                    return resolveNoSrvAsFuture(DnsName.from(domain), true);
+                                } else {
+                                    return Futures.immediateFuture(results);
+                                }
+                            },
+                            MoreExecutors.directExecutor());
+            final ListenableFuture<List<Result>> orderedFuture =
+                    Futures.transform(
+                            combinedWithFallback,
+                            all -> {
+                                final List<Result> ordered =
+                                        Ordering.from(RESULT_COMPARATOR).immutableSortedCopy(all);
+                                // a failed SRV lookup would make us cache the fallback results
+                                if (isSuccessful(startTls) && isSuccessful(directTls)) {
+                                    cache(domain, ordered);
+                                }
+                                return ordered;
+                            },
+                            MoreExecutors.directExecutor());
+            PENDING.put(domain, orderedFuture);
+            orderedFuture.addListener(
+                    () -> {
+                        synchronized (CACHE) {
+                            PENDING.remove(domain);
+                        }
+                    },
+                    MoreExecutors.directExecutor());
+            return orderedFuture;
+        }
+    }
+
+    private static boolean isSuccessful(final ListenableFuture<?> future) {
+        if (!future.isDone() || future.isCancelled()) {
+            return false;
+        }
+        try {
+            Futures.getDone(future);
+            return true;
+        } catch (final ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static CacheEntry getCacheEntry(final String domain) {
+        synchronized (CACHE) {
+            final CacheEntry entry = CACHE.get(domain);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        final List<Result> stored =
+                DatabaseBackend.getInstance(Conversations.getContext())
+                        .findCachedResolverResults(domain);
+        if (stored.isEmpty()) {
+            return null;
+        }
+        long expires = Long.MAX_VALUE;
+        for (final Result result : stored) {
+            expires = Math.min(expires, result.expires);
+        }
+        final CacheEntry entry =
+                new CacheEntry(
+                        Ordering.from(RESULT_COMPARATOR).immutableSortedCopy(stored),
+                        expires,
+                        false);
+        synchronized (CACHE) {
+            final CacheEntry current = CACHE.get(domain);
+            if (current != null) {
+                return current;
+            }
+            CACHE.put(domain, entry);
+        }
+        return entry;
+    }
+
+    private static void cache(final String domain, final List<Result> results) {
+        long expires = Long.MAX_VALUE;
+        for (final Result result : results) {
+            if (result.expires > 0) {
+                expires = Math.min(expires, result.expires);
+            }
+        }
+        if (expires == Long.MAX_VALUE) {
+            // none of the results came from an actual answer
+            return;
+        }
+        for (final Result result : results) {
+            if (result.expires <= 0) {
+                result.expires = expires;
+            }
+        }
+        synchronized (CACHE) {
+            CACHE.put(domain, new CacheEntry(results, expires, false));
+        }
+        DatabaseBackend.getInstance(Conversations.getContext())
+                .saveResolverResults(domain, results);
+    }
+
+    /**
+     * Limits the expiry of the results to the given time. Results without an expiry get the given
+     * one.
+     */
+    private static List<Result> expireAt(final List<Result> results, final long expires) {
+        for (final Result result : results) {
+            result.expires = result.expires <= 0 ? expires : Math.min(result.expires, expires);
+        }
+        return results;
+    }
+
     private static List<Result> fromIpAddress(final String domain) {
         if (IP.matches(domain)) {
             final InetAddress inetAddress;
@@ -183,13 +355,18 @@ public class Resolver {
             final ResolverResult<SRV> srvResolverResult, final boolean directTls) {
         final ImmutableList.Builder<ListenableFuture<List<Result>>> futuresBuilder =
                 new ImmutableList.Builder<>();
+        final long expires = AndroidDNSClient.expiresAt(srvResolverResult.getRawAnswer());
         for (final SRV record : srvResolverResult.getAnswersOrEmptySet()) {
             if (record.target.length() == 0 && record.priority == 0) {
                 continue;
             }
             final var ipv4sRaw =
                     resolveIpsAsFuture(
-                            record, A.class, srvResolverResult.isAuthenticData(), directTls);
+                            record,
+                            A.class,
+                            srvResolverResult.isAuthenticData(),
+                            directTls,
+                            expires);
             final var ipv4s =
                     Futures.transform(
                             ipv4sRaw,
@@ -199,6 +376,7 @@ public class Resolver {
                                             Result.fromRecord(record, directTls);
                                     resolverResult.authenticated =
                                             srvResolverResult.isAuthenticData();
+                                    resolverResult.expires = expires;
                                     return Collections.singletonList(resolverResult);
                                 } else {
                                     return results;
@@ -207,7 +385,11 @@ public class Resolver {
                             MoreExecutors.directExecutor());
             final var ipv6s =
                     resolveIpsAsFuture(
-                            record, AAAA.class, srvResolverResult.isAuthenticData(), directTls);
+                            record,
+                            AAAA.class,
+                            srvResolverResult.isAuthenticData(),
+                            directTls,
+                            expires);
             futuresBuilder.add(ipv4s);
             futuresBuilder.add(ipv6s);
         }
@@ -234,11 +416,19 @@ public class Resolver {
 
     private static <D extends InternetAddressRR<?>>
             ListenableFuture<List<Result>> resolveIpsAsFuture(
-                    final SRV srv, Class<D> type, boolean authenticated, boolean directTls) {
+                    final SRV srv,
+                    final Class<D> type,
+                    final boolean authenticated,
+                    final boolean directTls,
+                    final long srvExpires) {
         final var resultFuture = resolveAsFuture(srv.target, type);
         return Futures.transform(
                 resultFuture,
                 result -> {
+                    final long expires =
+                            Math.min(
+                                    srvExpires,
+                                    AndroidDNSClient.expiresAt(result.getRawAnswer()));
                     final var builder = new ImmutableList.Builder<Result>();
                     for (D record : result.getAnswersOrEmptySet()) {
                         Result resolverResult = Result.fromRecord(srv, directTls);
@@ -248,6 +438,7 @@ public class Resolver {
                         // the IP
                         // was authenticated
                         resolverResult.ip = record.getInetAddress();
+                        resolverResult.expires = expires;
                         builder.add(resolverResult);
                     }
                     return builder.build();
@@ -262,21 +453,13 @@ public class Resolver {
         ListenableFuture<List<Result>> aRecordResults =
                 Futures.transform(
                         resolveAsFuture(dnsName, A.class),
-                        result ->
-                                Lists.transform(
-                                        ImmutableList.copyOf(result.getAnswersOrEmptySet()),
-                                        a -> Result.createDefault(dnsName, a.getInetAddress())),
+                        result -> fromAddressRecords(dnsName, result),
                         MoreExecutors.directExecutor());
         futuresBuilder.add(aRecordResults);
         ListenableFuture<List<Result>> aaaaRecordResults =
                 Futures.transform(
                         resolveAsFuture(dnsName, AAAA.class),
-                        result ->
-                                Lists.transform(
-                                        ImmutableList.copyOf(result.getAnswersOrEmptySet()),
-                                        aaaa ->
-                                                Result.createDefault(
-                                                        dnsName, aaaa.getInetAddress())),
+                        result -> fromAddressRecords(dnsName, result),
                         MoreExecutors.directExecutor());
         futuresBuilder.add(aaaaRecordResults);
         if (cName) {
@@ -288,7 +471,12 @@ public class Resolver {
                                         Lists.transform(
                                                 ImmutableList.copyOf(result.getAnswersOrEmptySet()),
                                                 cname -> resolveNoSrvAsFuture(cname.target, false));
-                                return merge(test);
+                                final long expires =
+                                        AndroidDNSClient.expiresAt(result.getRawAnswer());
+                                return Futures.transform(
+                                        merge(test),
+                                        results -> expireAt(results, expires),
+                                        MoreExecutors.directExecutor());
                             },
                             MoreExecutors.directExecutor());
             futuresBuilder.add(cNameRecordResults);
@@ -307,6 +495,18 @@ public class Resolver {
                 MoreExecutors.directExecutor());
     }
 
+    private static List<Result> fromAddressRecords(
+            final DnsName dnsName, final ResolverResult<? extends InternetAddressRR<?>> result) {
+        final long expires = AndroidDNSClient.expiresAt(result.getRawAnswer());
+        final var builder = new ImmutableList.Builder<Result>();
+        for (final InternetAddressRR<?> record : result.getAnswersOrEmptySet()) {
+            final Result resolverResult = Result.createDefault(dnsName, record.getInetAddress());
+            resolverResult.expires = expires;
+            builder.add(resolverResult);
+        }
+        return builder.build();
+    }
+
     private static <D extends Data> ListenableFuture<ResolverResult<D>> resolveAsFuture(
             final DnsName dnsName, final Class<D> type) {
         return Futures.submit(
@@ -320,6 +520,28 @@ public class Resolver {
                 DNS_QUERY_EXECUTOR);
     }
 
+    private static class CacheEntry {
+        private final List<Result> results;
+        // wall clock time in milliseconds at which the first record used for the results expires
+        private final long expires;
+        // set on network changes; the results have to be revalidated before being fresh again
+        private final boolean stale;
+
+        private CacheEntry(final List<Result> results, final long expires, final boolean stale) {
+            this.results = results;
+            this.expires = expires;
+            this.stale = stale;
+        }
+
+        private boolean isFresh(final long now) {
+            return !stale && now < expires;
+        }
+
+        private CacheEntry asStale() {
+            return new CacheEntry(results, expires, true);
+        }
+    }
+
     public static class Result {
         public static final String DOMAIN = "domain";
         public static final String IP = "ip";
@@ -328,12 +550,20 @@ public class Resolver {
         public static final String PRIORITY = "priority";
         public static final String DIRECT_TLS = "directTls";
         public static final String AUTHENTICATED = "authenticated";
+        public static final String CANDIDATE = "candidate";
+        public static final String LATENCY = "latency";
+        public static final String LAST_SUCCESS = "lastSuccess";
+        public static final String EXPIRES = "expires";
         private InetAddress ip;
         private DnsName hostname;
         private int port = DEFAULT_PORT_XMPP;
         private boolean directTls = false;
         private boolean authenticated = false;
         private int priority;
+        // connection statistics; not part of the identity of a result
+        private long latency = -1;
+        // wall clock time in milliseconds at which the records this result is based on expire
+        private long expires = 0;
 
         static Result fromRecord(final SRV srv, final boolean directTls) {
             final Result result = new Result();
@@ -370,6 +600,10 @@ public class Resolver {
             result.priority = cursor.getInt(cursor.getColumnIndexOrThrow(PRIORITY));
             result.authenticated = cursor.getInt(cursor.getColumnIndexOrThrow(AUTHENTICATED)) > 0;
             result.directTls = cursor.getInt(cursor.getColumnIndexOrThrow(DIRECT_TLS)) > 0;
+            final int latency = cursor.getColumnIndex(LATENCY);
+            result.latency = latency < 0 || cursor.isNull(latency) ? -1 : cursor.getLong(latency);
+            final int expires = cursor.getColumnIndex(EXPIRES);
+            result.expires = expires < 0 || cursor.isNull(expires) ? 0 : cursor.getLong(expires);
             return result;
         }
 
@@ -411,6 +645,22 @@ public class Resolver {
             return authenticated;
         }
 
+        public long getExpires() {
+            return expires;
+        }
+
+        /**
+         * @return a key identifying the address this result connects to
+         */
+        public String getCandidate() {
+            return (hostname == null ? "" : hostname.toString())
+                    + '/'
+                    + (ip == null ? "" : ip.getHostAddress())
+                    + ':'
+                    + port
+                    + (directTls ? "/tls" : "");
+        }
+
         @Override
         @NonNull
         public String toString() {
@@ -432,6 +682,7 @@ public class Resolver {
             contentValues.put(PRIORITY, priority);
             contentValues.put(DIRECT_TLS, directTls ? 1 : 0);
             contentValues.put(AUTHENTICATED, authenticated ? 1 : 0);
+            contentValues.put(CANDIDATE, getCandidate());
             return contentValues;
         }
 
@@ -0,0 +1,130 @@
+package eu.siacs.conversations.utils;
+
+import static eu.siacs.conversations.utils.Random.SECURE_RANDOM;
+
+import android.util.Log;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import eu.siacs.conversations.Config;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Keeps initialized {@link SSLContext}s around so that connections made with the same key and
+ * trust managers share a client session cache and can resume their TLS sessions instead of doing
+ * a full handshake on every reconnect.
+ */
+public final class SSLContextCache {
+
+    private static final Cache<String, SSLContext> CONTEXTS =
+            CacheBuilder.newBuilder().maximumSize(32).build();
+
+    private static final AtomicInteger RESUMED_HANDSHAKES = new AtomicInteger();
+    private static final AtomicInteger FULL_HANDSHAKES = new AtomicInteger();
+
+    private SSLContextCache() {}
+
+    /**
+     * @param account the uuid of the account the context is used for or null if it is shared
+     * @param domain the domain the trust manager has been created for or null
+     * @param interactive whether the trust manager is allowed to ask the user
+     * @param privateKeyAlias the alias of the client certificate used by the key managers or null
+     */
+    public static SSLContext get(
+            final String account,
+            final String domain,
+            final boolean interactive,
+            final String privateKeyAlias,
+            final KeyManager[] keyManagers,
+            final X509TrustManager trustManager)
+            throws NoSuchAlgorithmException, KeyManagementException {
+        final String key =
+                Joiner.on('/')
+                        .join(
+                                Strings.nullToEmpty(account),
+                                Strings.nullToEmpty(domain),
+                                interactive,
+                                Strings.nullToEmpty(privateKeyAlias));
+        try {
+            return CONTEXTS.get(key, () -> create(keyManagers, trustManager));
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            } else if (cause instanceof KeyManagementException) {
+                throw (KeyManagementException) cause;
+            }
+            throw new KeyManagementException(cause);
+        }
+    }
+
+    private static SSLContext create(
+            final KeyManager[] keyManagers, final X509TrustManager trustManager)
+            throws NoSuchAlgorithmException, KeyManagementException {
+        final SSLContext sslContext = SSLSockets.getSSLContext();
+        sslContext.init(keyManagers, new X509TrustManager[] {trustManager}, SECURE_RANDOM);
+        final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionTimeout(Config.TLS_SESSION_TIMEOUT);
+        }
+        return sslContext;
+    }
+
+    /**
+     * Drops all contexts and with them the cached sessions. Has to be called when trust decisions
+     * are revoked; resumed sessions do not check the certificate again.
+     */
+    public static void invalidate() {
+        CONTEXTS.invalidateAll();
+    }
+
+    /**
+     * Counts whether the handshake of the socket, which must not have been started yet, resumed a
+     * previous session. A session is considered resumed if it has been created before the
+     * handshake started.
+     */
+    public static void trackHandshake(final SSLSocket socket) {
+        final long started = System.currentTimeMillis();
+        socket.addHandshakeCompletedListener(
+                event -> {
+                    final SSLSession session = event.getSession();
+                    final boolean resumed = session.getCreationTime() < started;
+                    final int count =
+                            resumed
+                                    ? RESUMED_HANDSHAKES.incrementAndGet()
+                                    : FULL_HANDSHAKES.incrementAndGet();
+                    Log.d(
+                            Config.LOGTAG,
+                            (resumed ? "resumed" : "full")
+                                    + " TLS handshake with "
+                                    + session.getPeerHost()
+                                    + " after "
+                                    + (System.currentTimeMillis() - started)
+                                    + "ms ("
+                                    + count
+                                    + " so far)");
+                });
+    }
+
+    public static int getResumedHandshakes() {
+        return RESUMED_HANDSHAKES.get();
+    }
+
+    public static int getFullHandshakes() {
+        return FULL_HANDSHAKES.get();
+    }
+}
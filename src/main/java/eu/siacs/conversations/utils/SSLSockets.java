@@ -43,6 +43,21 @@ public class SSLSockets {
         if (cipherSuites.length > 0) {
             sslSocket.setEnabledCipherSuites(cipherSuites);
         }
+        setUseSessionTickets(sslSocket);
+    }
+
+    private static void setUseSessionTickets(final SSLSocket socket) {
+        if (Conscrypt.isConscrypt(socket)) {
+            Conscrypt.setUseSessionTickets(socket, true);
+        } else {
+            try {
+                socket.getClass()
+                        .getMethod("setUseSessionTickets", boolean.class)
+                        .invoke(socket, true);
+            } catch (final Throwable e) {
+                Log.d(Config.LOGTAG, "unable to enable session tickets on socket");
+            }
+        }
     }
 
     public static void setHostname(final SSLSocket socket, final String hostname) {
@@ -44,18 +44,15 @@ import android.text.style.StrikethroughSpan;
 import android.text.style.StyleSpan;
 import android.text.style.TypefaceSpan;
 import android.widget.EditText;
-import android.widget.TextView;
 
 import androidx.annotation.ColorInt;
 import androidx.core.content.ContextCompat;
 
-import com.google.android.material.color.MaterialColors;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.ui.text.QuoteSpan;
 
@@ -96,10 +93,10 @@ public class StylingHelper {
 		format(editable, end, editable.length() - 1, textColor);
 	}
 
-	public static void highlight(final TextView view, final Editable editable, final List<String> needles) {
+	public static void highlight(final Editable editable, final List<String> needles, @ColorInt final int background, @ColorInt final int foreground) {
 		for (final String needle : needles) {
 			if (!FtsUtils.isKeyword(needle)) {
-				highlight(view, editable, needle);
+				highlight(editable, needle, background, foreground);
 			}
 		}
 	}
@@ -126,14 +123,14 @@ public class StylingHelper {
 		return words;
 	}
 
-	private static void highlight(final TextView view, final Editable editable, final String needle) {
+	private static void highlight(final Editable editable, final String needle, @ColorInt final int background, @ColorInt final int foreground) {
 		final int length = needle.length();
 		String string = editable.toString();
 		int start = indexOfIgnoreCase(string, needle, 0);
 		while (start != -1) {
 			int end = start + length;
-			editable.setSpan(new BackgroundColorSpan(MaterialColors.getColor(view, com.google.android.material.R.attr.colorPrimaryFixedDim)), start, end, SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
-			editable.setSpan(new ForegroundColorSpan(MaterialColors.getColor(view, com.google.android.material.R.attr.colorOnPrimaryFixed)), start, end, SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
+			editable.setSpan(new BackgroundColorSpan(background), start, end, SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
+			editable.setSpan(new ForegroundColorSpan(foreground), start, end, SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
 			start = indexOfIgnoreCase(string, needle, start + length);
 		}
 
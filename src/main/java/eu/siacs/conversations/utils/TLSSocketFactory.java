@@ -22,6 +22,10 @@ public class TLSSocketFactory extends SSLSocketFactory {
         this.internalSSLSocketFactory = context.getSocketFactory();
     }
 
+    public TLSSocketFactory(final SSLContext context) {
+        this.internalSSLSocketFactory = context.getSocketFactory();
+    }
+
     @Override
     public String[] getDefaultCipherSuites() {
         return CryptoHelper.getOrderedCipherSuites(internalSSLSocketFactory.getDefaultCipherSuites());
@@ -60,6 +64,7 @@ public class TLSSocketFactory extends SSLSocketFactory {
     private static Socket enableTLSOnSocket(Socket socket) {
         if(socket instanceof SSLSocket) {
             SSLSockets.setSecurity((SSLSocket) socket);
+            SSLContextCache.trackHandshake((SSLSocket) socket);
         }
         return socket;
     }
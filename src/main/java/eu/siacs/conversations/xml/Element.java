@@ -18,7 +18,10 @@ import im.conversations.android.xmpp.model.stanza.Message;
 
 public class Element {
     private final String name;
-    private Hashtable<String, String> attributes = new Hashtable<>();
+    private Hashtable<String, String> attributes;
+    // alternating names and values as read by XmlReader. only turned into a Hashtable on demand
+    private String[] compactAttributes;
+    private int compactAttributeCount;
     private String content;
     protected List<Element> children = new ArrayList<>();
 
@@ -126,14 +129,14 @@ public class Element {
 
     public Element setAttribute(String name, String value) {
         if (name != null && value != null) {
-            this.attributes.put(name, value);
+            this.getAttributes().put(name, value);
         }
         return this;
     }
 
     public Element setAttribute(String name, Jid value) {
         if (name != null && value != null) {
-            this.attributes.put(name, value.toEscapedString());
+            this.getAttributes().put(name, value.toEscapedString());
         }
         return this;
     }
@@ -143,24 +146,41 @@ public class Element {
     }
 
     public void removeAttribute(final String name) {
-        this.attributes.remove(name);
+        this.getAttributes().remove(name);
     }
 
     public Element setAttributes(Hashtable<String, String> attributes) {
         this.attributes = attributes;
+        this.compactAttributes = null;
+        this.compactAttributeCount = 0;
+        return this;
+    }
+
+    /**
+     * Takes over the given array of alternating names and values without copying it. Later names
+     * take precedence over earlier ones with the same name.
+     */
+    Element setAttributes(final String[] attributes, final int count) {
+        this.attributes = null;
+        this.compactAttributes = attributes;
+        this.compactAttributeCount = count;
         return this;
     }
 
     public String getAttribute(String name) {
-        if (this.attributes.containsKey(name)) {
-            return this.attributes.get(name);
-        } else {
+        if (this.attributes == null) {
+            for (int i = compactAttributeCount - 1; i >= 0; --i) {
+                if (compactAttributes[i * 2].equals(name)) {
+                    return compactAttributes[i * 2 + 1];
+                }
+            }
             return null;
         }
+        return this.attributes.get(name);
     }
 
     public long getLongAttribute(final String name) {
-        final var value = Longs.tryParse(Strings.nullToEmpty(this.attributes.get(name)));
+        final var value = Longs.tryParse(Strings.nullToEmpty(this.getAttribute(name)));
         return value == null ? 0 : value;
     }
 
@@ -185,19 +205,42 @@ public class Element {
     }
 
     public Hashtable<String, String> getAttributes() {
+        if (this.attributes == null) {
+            // default load factor is 0.75; size the table so that it never needs to rehash
+            final var attributes =
+                    new Hashtable<String, String>(Math.max(1, compactAttributeCount * 4 / 3 + 1));
+            for (int i = 0; i < compactAttributeCount; ++i) {
+                attributes.put(compactAttributes[i * 2], compactAttributes[i * 2 + 1]);
+            }
+            this.attributes = attributes;
+            this.compactAttributes = null;
+            this.compactAttributeCount = 0;
+        }
         return this.attributes;
     }
 
+    /**
+     * @return the attributes as alternating names and values or null if they are kept in a
+     *     Hashtable
+     */
+    String[] getCompactAttributes() {
+        return this.attributes == null ? this.compactAttributes : null;
+    }
+
+    int getCompactAttributeCount() {
+        return this.attributes == null ? this.compactAttributeCount : 0;
+    }
+
     @NonNull
     public String toString() {
         final StringBuilder elementOutput = new StringBuilder();
         if (content == null && children.isEmpty()) {
             final Tag emptyTag = Tag.empty(name);
-            emptyTag.setAttributes(this.attributes);
+            emptyTag.setAttributes(this.getAttributes());
             elementOutput.append(emptyTag);
         } else {
             final Tag startTag = Tag.start(name);
-            startTag.setAttributes(this.attributes);
+            startTag.setAttributes(this.getAttributes());
             elementOutput.append(startTag);
             if (content != null) {
                 elementOutput.append(XmlHelper.encodeEntities(content));
@@ -0,0 +1,119 @@
+package eu.siacs.conversations.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes elements straight into a {@link Writer} instead of building a String per element like
+ * {@link Element#toString()} does. The output is equivalent to {@link Element#toString()};
+ * attributes are written in the iteration order of the attribute table, or in document order for
+ * elements read by {@link XmlReader} that still keep them compact, and text is escaped like
+ * {@link eu.siacs.conversations.utils.XmlHelper#encodeEntities(String)} but in a single pass
+ * that writes unescaped runs as a whole.
+ */
+public final class ElementSerializer {
+
+    private ElementSerializer() {}
+
+    public static void write(final Element element, final Writer writer) throws IOException {
+        final String name = element.getName();
+        final String content = element.getContent();
+        writer.write('<');
+        writer.write(name);
+        final String[] compactAttributes = element.getCompactAttributes();
+        if (compactAttributes != null) {
+            final int count = element.getCompactAttributeCount();
+            for (int i = 0; i < count; ++i) {
+                final String attributeName = compactAttributes[i * 2];
+                if (isOverridden(compactAttributes, count, i, attributeName)) {
+                    continue;
+                }
+                writeAttribute(attributeName, compactAttributes[i * 2 + 1], writer);
+            }
+        } else {
+            for (final Map.Entry<String, String> attribute : element.getAttributes().entrySet()) {
+                writeAttribute(attribute.getKey(), attribute.getValue(), writer);
+            }
+        }
+        if (content == null && element.getChildren().isEmpty()) {
+            writer.write("/>");
+            return;
+        }
+        writer.write('>');
+        if (content != null) {
+            writeEscaped(content, writer);
+        } else {
+            for (final Element child : element.getChildren()) {
+                write(child, writer);
+            }
+        }
+        writer.write("</");
+        writer.write(name);
+        writer.write('>');
+    }
+
+    private static boolean isOverridden(
+            final String[] attributes, final int count, final int index, final String name) {
+        for (int i = index + 1; i < count; ++i) {
+            if (attributes[i * 2].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeAttribute(
+            final String name, final String value, final Writer writer) throws IOException {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+        writeEscaped(value, writer);
+        writer.write('"');
+    }
+
+    static void writeEscaped(final String text, final Writer writer) throws IOException {
+        final int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; ++i) {
+            final char c = text.charAt(i);
+            final String replacement;
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&apos;";
+                    break;
+                case '\n':
+                case '\t':
+                case '\r':
+                    continue;
+                default:
+                    // control characters are dropped
+                    if (c < 0x20 || c == 0x7f) {
+                        replacement = "";
+                        break;
+                    }
+                    continue;
+            }
+            if (i > start) {
+                writer.write(text, start, i - start);
+            }
+            writer.write(replacement);
+            start = i + 1;
+        }
+        if (start < length) {
+            writer.write(text, start, length - start);
+        }
+    }
+}
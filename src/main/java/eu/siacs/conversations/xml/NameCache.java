@@ -0,0 +1,44 @@
+package eu.siacs.conversations.xml;
+
+/**
+ * Small fixed size cache that deduplicates element names, attribute names and namespaces produced
+ * by the parser, so that the elements of a long running stream share a handful of String
+ * instances. Unlike {@link String#intern()} it is bounded; a peer sending lots of distinct names
+ * only causes cache misses. Not thread safe; every {@link XmlReader} has its own.
+ */
+final class NameCache {
+
+    private static final int SIZE = 512;
+
+    private final String[] names = new String[SIZE];
+
+    private final String[] prefixes = new String[SIZE];
+    private final String[] localNames = new String[SIZE];
+    private final String[] qualifiedNames = new String[SIZE];
+
+    String intern(final String name) {
+        if (name == null) {
+            return null;
+        }
+        final int index = name.hashCode() & (SIZE - 1);
+        final String cached = names[index];
+        if (name.equals(cached)) {
+            return cached;
+        }
+        names[index] = name;
+        return name;
+    }
+
+    /** Returns prefix:localName without concatenating again for names that have been seen. */
+    String qualify(final String prefix, final String localName) {
+        final int index = (31 * prefix.hashCode() + localName.hashCode()) & (SIZE - 1);
+        if (prefix.equals(prefixes[index]) && localName.equals(localNames[index])) {
+            return qualifiedNames[index];
+        }
+        final String qualifiedName = prefix + ':' + localName;
+        prefixes[index] = prefix;
+        localNames[index] = localName;
+        qualifiedNames[index] = qualifiedName;
+        return qualifiedName;
+    }
+}
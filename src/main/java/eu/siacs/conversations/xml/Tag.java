@@ -16,11 +16,31 @@ public class Tag {
 
     protected int type;
     protected String name;
-    protected Hashtable<String, String> attributes = new Hashtable<String, String>();
+    protected Hashtable<String, String> attributes;
+
+    // alternating names and values as read by the parser. only turned into a Hashtable on demand
+    private String[] compactAttributes;
+    private int compactAttributeCount;
 
     protected Tag(int type, String name) {
         this.type = type;
         this.name = name;
+        this.attributes = new Hashtable<>();
+    }
+
+    private Tag(final String name, final String[] compactAttributes, final int count) {
+        this.type = START;
+        this.name = name;
+        this.compactAttributes = compactAttributes;
+        this.compactAttributeCount = count;
+    }
+
+    /**
+     * Creates a start tag that keeps its attributes in the given array of alternating names and
+     * values. Later names take precedence over earlier ones with the same name.
+     */
+    static Tag start(final String name, final String[] attributes, final int count) {
+        return new Tag(name, attributes, count);
     }
 
     public static Tag no(String text) {
@@ -44,20 +64,30 @@ public class Tag {
     }
 
     public String identifier() {
-        return String.format("%s#%s", name, this.attributes.get("xmlns"));
+        return String.format("%s#%s", name, getAttribute("xmlns"));
     }
 
     public String getAttribute(final String attrName) {
+        if (this.attributes == null) {
+            for (int i = compactAttributeCount - 1; i >= 0; --i) {
+                if (compactAttributes[i * 2].equals(attrName)) {
+                    return compactAttributes[i * 2 + 1];
+                }
+            }
+            return null;
+        }
         return this.attributes.get(attrName);
     }
 
     public Tag setAttribute(final String attrName, final String attrValue) {
-        this.attributes.put(attrName, attrValue);
+        getAttributes().put(attrName, attrValue);
         return this;
     }
 
     public void setAttributes(final Hashtable<String, String> attributes) {
         this.attributes = attributes;
+        this.compactAttributes = null;
+        this.compactAttributeCount = 0;
     }
 
     public boolean isStart(final String needle) {
@@ -89,7 +119,7 @@ public class Tag {
         }
         tagOutput.append(name);
         if (type != END) {
-            final Set<Entry<String, String>> attributeSet = attributes.entrySet();
+            final Set<Entry<String, String>> attributeSet = getAttributes().entrySet();
             for (final Entry<String, String> entry : attributeSet) {
                 tagOutput.append(' ');
                 tagOutput.append(entry.getKey());
@@ -105,7 +135,30 @@ public class Tag {
         return tagOutput.toString();
     }
 
+    /**
+     * Hands the attributes of this tag to the element read for it. Compact attributes are passed
+     * on as they are instead of being turned into a Hashtable.
+     */
+    void applyAttributes(final Element element) {
+        if (this.attributes == null) {
+            element.setAttributes(compactAttributes, compactAttributeCount);
+        } else {
+            element.setAttributes(this.attributes);
+        }
+    }
+
     public Hashtable<String, String> getAttributes() {
+        if (this.attributes == null) {
+            // default load factor is 0.75; size the table so that it never needs to rehash
+            final var attributes =
+                    new Hashtable<String, String>(Math.max(1, compactAttributeCount * 4 / 3 + 1));
+            for (int i = 0; i < compactAttributeCount; ++i) {
+                attributes.put(compactAttributes[i * 2], compactAttributes[i * 2 + 1]);
+            }
+            this.attributes = attributes;
+            this.compactAttributes = null;
+            this.compactAttributeCount = 0;
+        }
         return this.attributes;
     }
 }
@@ -2,20 +2,35 @@ package eu.siacs.conversations.xml;
 
 import android.util.Log;
 
+import com.google.common.base.Stopwatch;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.conversations.Config;
 import im.conversations.android.xmpp.model.StreamElement;
 
 public class TagWriter {
 
-    private OutputStreamWriter outputStream;
+    private Writer outputStream;
     private boolean finished = false;
+    private volatile boolean corked = false;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong socketWrites = new AtomicLong();
+    private Stopwatch stopwatch = Stopwatch.createUnstarted();
 
     private final LinkedBlockingQueue<StreamElement> writeQueue = new LinkedBlockingQueue<>();
     private CountDownLatch stanzaWriterCountDownLatch = null;
@@ -25,20 +40,52 @@ public class TagWriter {
         @Override
         public void run() {
             stanzaWriterCountDownLatch = new CountDownLatch(1);
+            final List<StreamElement> batch = new ArrayList<>();
+            long unflushedSince = -1;
             while (!isInterrupted()) {
                 if (finished && writeQueue.isEmpty()) {
                     break;
                 }
                 try {
-                    final var output = writeQueue.take();
-                    outputStream.write(output.toString());
-                    if (writeQueue.isEmpty()) {
-                        outputStream.flush();
+                    if (unflushedSince < 0) {
+                        batch.add(writeQueue.take());
+                    } else {
+                        final long remaining =
+                                corked
+                                        ? unflushedSince
+                                                + Config.TAG_WRITER_CORK_MAX_LATENCY
+                                                - System.currentTimeMillis()
+                                        : 0;
+                        final StreamElement next =
+                                remaining > 0
+                                        ? writeQueue.poll(remaining, TimeUnit.MILLISECONDS)
+                                        : writeQueue.poll();
+                        if (next == null) {
+                            outputStream.flush();
+                            unflushedSince = -1;
+                            continue;
+                        }
+                        batch.add(next);
+                    }
+                    writeQueue.drainTo(batch);
+                    for (final StreamElement element : batch) {
+                        ElementSerializer.write(element, outputStream);
+                    }
+                    batch.clear();
+                    if (unflushedSince < 0) {
+                        unflushedSince = System.currentTimeMillis();
                     }
                 } catch (Exception e) {
                     break;
                 }
             }
+            if (unflushedSince >= 0) {
+                try {
+                    outputStream.flush();
+                } catch (final Exception e) {
+                    // connection is going away anyway
+                }
+            }
             stanzaWriterCountDownLatch.countDown();
         }
 
@@ -51,7 +98,15 @@ public class TagWriter {
         if (out == null) {
             throw new IOException();
         }
-        this.outputStream = new OutputStreamWriter(out);
+        this.bytesWritten.set(0);
+        this.socketWrites.set(0);
+        this.stopwatch = Stopwatch.createStarted();
+        this.outputStream =
+                new BufferedWriter(
+                        new OutputStreamWriter(
+                                new BufferedOutputStream(
+                                        new MeteredOutputStream(out),
+                                        Config.TAG_WRITER_BUFFER_SIZE)));
     }
 
     public void beginDocument() throws IOException {
@@ -79,7 +134,7 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(element.toString());
+        ElementSerializer.write(element, outputStream);
         outputStream.flush();
     }
 
@@ -98,6 +153,29 @@ public class TagWriter {
         }
     }
 
+    /**
+     * Holds back stanzas written with {@link #writeStanzaAsync(StreamElement)} so that a burst of
+     * them goes out in as few TLS records as possible. While corked the writer only flushes when
+     * its buffer is full or the oldest pending stanza has waited for {@link
+     * Config#TAG_WRITER_CORK_MAX_LATENCY}.
+     */
+    public void cork() {
+        this.corked = true;
+    }
+
+    public void uncork() {
+        this.corked = false;
+        // the async writer might be sitting in its latency wait; the writer is thread safe
+        final Writer writer = this.outputStream;
+        if (writer != null && asyncStanzaWriter.isAlive()) {
+            try {
+                writer.flush();
+            } catch (final IOException e) {
+                // the async writer will run into the same error
+            }
+        }
+    }
+
     public void finish() {
         this.finished = true;
     }
@@ -110,6 +188,26 @@ public class TagWriter {
         }
     }
 
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /** Number of writes that reached the socket. With TLS each of them is at least one record. */
+    public long getSocketWrites() {
+        return socketWrites.get();
+    }
+
+    public String getStatistics() {
+        final double seconds = Math.max(1, stopwatch.elapsed(TimeUnit.MILLISECONDS)) / 1000d;
+        return String.format(
+                Locale.US,
+                "%d bytes in %d writes (%.1f bytes/s, %.2f writes/s)",
+                bytesWritten.get(),
+                socketWrites.get(),
+                bytesWritten.get() / seconds,
+                socketWrites.get() / seconds);
+    }
+
     public boolean isActive() {
         return outputStream != null;
     }
@@ -125,4 +223,25 @@ public class TagWriter {
         }
         outputStream = null;
     }
+
+    private class MeteredOutputStream extends FilterOutputStream {
+
+        private MeteredOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            bytesWritten.incrementAndGet();
+            socketWrites.incrementAndGet();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            bytesWritten.addAndGet(len);
+            socketWrites.incrementAndGet();
+        }
+    }
 }
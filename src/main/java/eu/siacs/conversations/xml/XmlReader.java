@@ -19,9 +19,20 @@ import java.io.InputStreamReader;
 
 public class XmlReader implements Closeable {
 	private final XmlPullParser parser;
+	private final boolean legacy;
+	private final NameCache nameCache = new NameCache();
 	private InputStream is;
 
 	public XmlReader() {
+		this(Config.USE_LEGACY_XML_READER);
+	}
+
+	/**
+	 * @param legacy read tags into Hashtables and create extensions through reflection instead of
+	 *     the allocation-light mode with compact attributes and generated extension factories
+	 */
+	public XmlReader(final boolean legacy) {
+		this.legacy = legacy;
 		this.parser = Xml.newPullParser();
 		try {
 			this.parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
@@ -62,6 +73,9 @@ public class XmlReader implements Closeable {
 		try {
 			while (this.is != null && parser.next() != XmlPullParser.END_DOCUMENT) {
 				if (parser.getEventType() == XmlPullParser.START_TAG) {
+					if (!legacy) {
+						return readStartTag();
+					}
 					Tag tag = Tag.start(parser.getName());
 					final String xmlns = parser.getNamespace();
 					for (int i = 0; i < parser.getAttributeCount(); ++i) {
@@ -79,7 +93,7 @@ public class XmlReader implements Closeable {
 					}
 					return tag;
 				} else if (parser.getEventType() == XmlPullParser.END_TAG) {
-					return Tag.end(parser.getName());
+					return Tag.end(legacy ? parser.getName() : nameCache.intern(parser.getName()));
 				} else if (parser.getEventType() == XmlPullParser.TEXT) {
 					return Tag.no(parser.getText());
 				}
@@ -91,6 +105,28 @@ public class XmlReader implements Closeable {
 		return null;
 	}
 
+	private Tag readStartTag() {
+		final int count = parser.getAttributeCount();
+		final String xmlns = parser.getNamespace();
+		final String[] attributes = new String[(xmlns == null ? count : count + 1) * 2];
+		int index = 0;
+		for (int i = 0; i < count; ++i) {
+			final String prefix = parser.getAttributePrefix(i);
+			final String name = parser.getAttributeName(i);
+			if (prefix != null && !prefix.isEmpty()) {
+				attributes[index++] = nameCache.qualify(prefix, name);
+			} else {
+				attributes[index++] = nameCache.intern(name);
+			}
+			attributes[index++] = parser.getAttributeValue(i);
+		}
+		if (xmlns != null) {
+			attributes[index++] = "xmlns";
+			attributes[index++] = nameCache.intern(xmlns);
+		}
+		return Tag.start(nameCache.intern(parser.getName()), attributes, index / 2);
+	}
+
 	public <T extends StreamElement> T readElement(final Tag current, final Class<T> clazz)
 			throws IOException {
 		final Element element = readElement(current);
@@ -102,11 +138,15 @@ public class XmlReader implements Closeable {
 	}
 
 	public Element readElement(final Tag currentTag) throws IOException {
-		final var attributes = currentTag.getAttributes();
-		final var namespace = attributes.get("xmlns");
+		final var namespace = currentTag.getAttribute("xmlns");
 		final var name = currentTag.getName();
-		final Element element = ExtensionFactory.create(name, namespace);
-		element.setAttributes(currentTag.getAttributes());
+		final Element element;
+		if (legacy) {
+			element = ExtensionFactory.createReflectively(name, namespace);
+		} else {
+			element = ExtensionFactory.create(name, namespace);
+		}
+		currentTag.applyAttributes(element);
 		Tag nextTag = this.readTag();
 		if (nextTag == null) {
 			throw new IOException("interrupted mid tag");
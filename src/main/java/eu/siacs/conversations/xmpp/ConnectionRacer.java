@@ -0,0 +1,191 @@
+package eu.siacs.conversations.xmpp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.utils.Resolver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races connection attempts to the resolver results in the style of RFC 8305 (Happy Eyeballs).
+ * Attempts are started in list order; the next one starts when the previous one fails or after
+ * {@link Config#CONNECTION_ATTEMPT_DELAY}, whichever comes first. The first attempt that completes
+ * the TCP handshake and, for direct TLS, the TLS handshake wins. The sockets of all other attempts
+ * are closed.
+ */
+class ConnectionRacer {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    interface Connector {
+        /**
+         * Connects the given unconnected socket to the result and performs the TLS handshake if
+         * needed.
+         *
+         * @return the socket to use for the stream, which may be layered on top of the given one
+         */
+        Socket connect(Resolver.Result result, Socket socket) throws IOException;
+    }
+
+    static class Winner {
+        final Resolver.Result result;
+        final Socket socket;
+        // time needed for the TCP and TLS handshake in milliseconds
+        final long latency;
+
+        private Winner(final Resolver.Result result, final Socket socket, final long latency) {
+            this.result = result;
+            this.socket = socket;
+            this.latency = latency;
+        }
+    }
+
+    private static class Outcome {
+        final int index;
+        final Winner winner;
+        final IOException failure;
+
+        private Outcome(final int index, final Winner winner, final IOException failure) {
+            this.index = index;
+            this.winner = winner;
+            this.failure = failure;
+        }
+    }
+
+    private final List<Resolver.Result> candidates;
+    private final Connector connector;
+    private final Socket[] sockets;
+    private final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+    // guarded by this
+    private boolean finished = false;
+
+    private ConnectionRacer(final List<Resolver.Result> candidates, final Connector connector) {
+        this.candidates = candidates;
+        this.connector = connector;
+        this.sockets = new Socket[candidates.size()];
+    }
+
+    /**
+     * @throws IOException the failure of the last candidate if all attempts failed
+     */
+    static Winner race(final List<Resolver.Result> candidates, final Connector connector)
+            throws IOException, InterruptedException {
+        return new ConnectionRacer(candidates, connector).race();
+    }
+
+    private Winner race() throws IOException, InterruptedException {
+        final int count = candidates.size();
+        final IOException[] failures = new IOException[count];
+        int started = 0;
+        int completed = 0;
+        long nextStart = 0;
+        int winnerIndex = -1;
+        try {
+            while (completed < count) {
+                final long now = SystemClock.elapsedRealtime();
+                if (started < count && (started == completed || now >= nextStart)) {
+                    start(started++);
+                    nextStart = now + Config.CONNECTION_ATTEMPT_DELAY;
+                    continue;
+                }
+                final Outcome outcome;
+                if (started < count) {
+                    outcome = outcomes.poll(nextStart - now, TimeUnit.MILLISECONDS);
+                } else {
+                    outcome = outcomes.take();
+                }
+                if (outcome == null) {
+                    continue;
+                }
+                ++completed;
+                if (outcome.winner != null) {
+                    winnerIndex = outcome.index;
+                    return outcome.winner;
+                }
+                failures[outcome.index] = outcome.failure;
+            }
+        } finally {
+            finish(winnerIndex);
+        }
+        for (int i = count - 1; i >= 0; --i) {
+            if (failures[i] != null) {
+                throw failures[i];
+            }
+        }
+        throw new UnknownHostException();
+    }
+
+    private void start(final int index) {
+        final Resolver.Result result = candidates.get(index);
+        final Socket socket = new Socket();
+        synchronized (this) {
+            sockets[index] = socket;
+        }
+        EXECUTOR.execute(
+                () -> {
+                    final long start = SystemClock.elapsedRealtime();
+                    Outcome outcome;
+                    try {
+                        final Socket connected = connector.connect(result, socket);
+                        final long latency = SystemClock.elapsedRealtime() - start;
+                        outcome = new Outcome(index, new Winner(result, connected, latency), null);
+                    } catch (final Throwable e) {
+                        // anything thrown here would kill the pool thread and leave race() waiting
+                        Log.d(
+                                Config.LOGTAG,
+                                "connection attempt to "
+                                        + result
+                                        + " failed: "
+                                        + e.getMessage()
+                                        + "("
+                                        + e.getClass().getName()
+                                        + ")");
+                        FileBackend.close(socket);
+                        outcome =
+                                new Outcome(
+                                        index,
+                                        null,
+                                        e instanceof IOException
+                                                ? (IOException) e
+                                                : new IOException(e));
+                    }
+                    synchronized (this) {
+                        if (finished) {
+                            // the race has been decided without this attempt
+                            if (outcome.winner != null) {
+                                FileBackend.close(outcome.winner.socket);
+                            }
+                            FileBackend.close(socket);
+                        } else {
+                            outcomes.add(outcome);
+                        }
+                    }
+                });
+    }
+
+    private synchronized void finish(final int winnerIndex) {
+        this.finished = true;
+        for (final Outcome outcome : outcomes) {
+            if (outcome.winner != null && outcome.index != winnerIndex) {
+                FileBackend.close(outcome.winner.socket);
+            }
+        }
+        outcomes.clear();
+        for (int i = 0; i < sockets.length; ++i) {
+            if (i != winnerIndex) {
+                FileBackend.close(sockets[i]);
+            }
+        }
+    }
+}
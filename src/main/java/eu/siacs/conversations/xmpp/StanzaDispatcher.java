@@ -0,0 +1,210 @@
+package eu.siacs.conversations.xmpp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.base.MoreObjects;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples reading from the socket from handling the stanzas that have been read. The reader
+ * thread hands every parsed stanza to {@link #dispatch(String, Runnable)} which puts it on a
+ * bounded queue that is drained by a single worker thread. Handling therefore happens in exactly
+ * the order the stanzas were received (which implies per conversation ordering) and a reader that
+ * gets too far ahead of the worker blocks until there is room in the queue again.
+ */
+public class StanzaDispatcher {
+
+    private static final long WORKER_KEEP_ALIVE = 30_000;
+
+    private final Account account;
+    private final BlockingQueue<Task> queue =
+            new LinkedBlockingQueue<>(Config.STANZA_DISPATCH_QUEUE_CAPACITY);
+    private final Object idleLock = new Object();
+    private int pending = 0;
+    private Thread worker = null;
+
+    private long handled = 0;
+    private long totalHandlingTime = 0;
+    private long maxHandlingTime = 0;
+    private long maxQueueTime = 0;
+    private int maxQueueDepth = 0;
+
+    public StanzaDispatcher(final Account account) {
+        this.account = account;
+    }
+
+    public void dispatch(final String name, final Runnable runnable)
+            throws InterruptedIOException {
+        final Task task = new Task(name, runnable);
+        synchronized (idleLock) {
+            pending++;
+        }
+        try {
+            if (!queue.offer(task)) {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": stanza dispatch queue is full. waiting for handler to catch"
+                                + " up");
+                queue.put(task);
+            }
+        } catch (final InterruptedException e) {
+            onTaskFinished();
+            throw new InterruptedIOException("interrupted while waiting for dispatch queue");
+        }
+        final int depth = queue.size();
+        synchronized (this) {
+            if (depth > maxQueueDepth) {
+                maxQueueDepth = depth;
+            }
+            if (worker == null) {
+                worker = new Thread(this::work, "StanzaDispatcher-" + account.getUuid());
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Blocks until every stanza that has been dispatched so far has been handled.
+     *
+     * @return true if the queue drained within the timeout
+     */
+    public boolean awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + unit.toMillis(timeout);
+        synchronized (idleLock) {
+            while (pending > 0) {
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                idleLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                final Task task;
+                try {
+                    task = queue.poll(WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                if (task == null) {
+                    synchronized (this) {
+                        if (queue.isEmpty()) {
+                            // cleared under the same lock dispatch() checks it with
+                            worker = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                execute(task);
+            }
+        } finally {
+            // also reached if a task throws an Error; the next dispatch starts a new worker
+            synchronized (this) {
+                if (worker == Thread.currentThread()) {
+                    worker = null;
+                }
+            }
+        }
+    }
+
+    private void execute(final Task task) {
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            task.runnable.run();
+        } catch (final RuntimeException e) {
+            Log.e(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid() + ": unable to handle " + task.name,
+                    e);
+        } finally {
+            final long end = SystemClock.elapsedRealtime();
+            recordLatency(task, start - task.enqueued, end - start);
+            onTaskFinished();
+        }
+    }
+
+    private synchronized void recordLatency(
+            final Task task, final long queueTime, final long handlingTime) {
+        handled++;
+        totalHandlingTime += handlingTime;
+        maxHandlingTime = Math.max(maxHandlingTime, handlingTime);
+        maxQueueTime = Math.max(maxQueueTime, queueTime);
+        if (handlingTime >= Config.STANZA_DISPATCH_SLOW_THRESHOLD) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": handling "
+                            + task.name
+                            + " took "
+                            + handlingTime
+                            + "ms (queued for "
+                            + queueTime
+                            + "ms, depth="
+                            + queue.size()
+                            + ")");
+        }
+    }
+
+    private void onTaskFinished() {
+        final boolean idle;
+        synchronized (idleLock) {
+            pending--;
+            idle = pending == 0;
+            if (idle) {
+                idleLock.notifyAll();
+            }
+        }
+        if (idle) {
+            synchronized (this) {
+                if (maxQueueDepth >= Config.STANZA_DISPATCH_QUEUE_CAPACITY / 4) {
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid() + ": drained dispatch queue " + this);
+                    maxQueueDepth = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("depth", queue.size())
+                .add("maxDepth", maxQueueDepth)
+                .add("handled", handled)
+                .add("avgHandlingTime", handled == 0 ? 0 : totalHandlingTime / handled)
+                .add("maxHandlingTime", maxHandlingTime)
+                .add("maxQueueTime", maxQueueTime)
+                .toString();
+    }
+
+    private static class Task {
+        private final String name;
+        private final Runnable runnable;
+        private final long enqueued = SystemClock.elapsedRealtime();
+
+        private Task(final String name, final Runnable runnable) {
+            this.name = name;
+            this.runnable = runnable;
+        }
+    }
+}
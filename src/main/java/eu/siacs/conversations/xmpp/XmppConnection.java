@@ -1,7 +1,5 @@
 package eu.siacs.conversations.xmpp;
 
-import static eu.siacs.conversations.utils.Random.SECURE_RANDOM;
-
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -50,6 +48,7 @@ import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.Patterns;
 import eu.siacs.conversations.utils.PhoneHelper;
 import eu.siacs.conversations.utils.Resolver;
+import eu.siacs.conversations.utils.SSLContextCache;
 import eu.siacs.conversations.utils.SSLSockets;
 import eu.siacs.conversations.utils.SocksSocketFactory;
 import eu.siacs.conversations.utils.XmlHelper;
@@ -124,7 +123,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -141,7 +139,6 @@ import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509KeyManager;
-import javax.net.ssl.X509TrustManager;
 
 public class XmppConnection implements Runnable {
 
@@ -186,6 +183,7 @@ public class XmppConnection implements Runnable {
     private final Consumer<Presence> presenceListener;
     private final Consumer<Iq> unregisteredIqListener;
     private final Consumer<im.conversations.android.xmpp.model.stanza.Message> messageListener;
+    private final StanzaDispatcher stanzaDispatcher;
     private OnStatusChanged statusListener = null;
     private final Runnable bindListener;
     private OnMessageAcknowledged acknowledgedListener = null;
@@ -206,6 +204,7 @@ public class XmppConnection implements Runnable {
         this.unregisteredIqListener = new IqParser(service, account);
         this.messageListener = new MessageParser(service, account);
         this.bindListener = new BindProcessor(service, account);
+        this.stanzaDispatcher = new StanzaDispatcher(account);
     }
 
     private static void fixResource(final Context context, final Account account) {
@@ -288,6 +287,23 @@ public class XmppConnection implements Runnable {
             mXmppConnectionService.resetSendingToWaiting(account);
         }
         Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": connecting");
+        try {
+            // stanzas from the previous session have already been counted as received
+            if (!stanzaDispatcher.awaitIdle(
+                    Config.STANZA_DISPATCH_DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": stanzas from previous session have not been handled yet "
+                                + stanzaDispatcher);
+            }
+        } catch (final InterruptedException e) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": interrupted while waiting for stanza dispatcher");
+            return;
+        }
         this.loginInfo = null;
         this.features.encryptionEnabled = false;
         this.inSmacksSession = false;
@@ -374,6 +390,13 @@ public class XmppConnection implements Runnable {
                                         + ": loaded backup resolver result from db: "
                                         + storedBackupResult);
                     }
+                    final List<Resolver.Result> ordered =
+                            Resolver.orderByStatistics(
+                                    results,
+                                    mXmppConnectionService.databaseBackend.findResolverResults(
+                                            domain));
+                    results.clear();
+                    results.addAll(ordered);
                 }
                 final StreamId streamId = this.streamId;
                 final Resolver.Result resumeLocation = streamId == null ? null : streamId.location;
@@ -392,66 +415,50 @@ public class XmppConnection implements Runnable {
                                     + ": injected see-other-host on position 0");
                     results.add(0, seeOtherHost);
                 }
-                for (final Iterator<Resolver.Result> iterator = results.iterator();
-                        iterator.hasNext(); ) {
-                    final Resolver.Result result = iterator.next();
+                while (true) {
                     if (Thread.currentThread().isInterrupted()) {
                         Log.d(
                                 Config.LOGTAG,
                                 account.getJid().asBareJid() + ": Thread was interrupted");
                         return;
                     }
+                    final ConnectionRacer.Winner winner;
+                    try {
+                        winner = ConnectionRacer.race(results, this::connect);
+                    } catch (final StateChangingException e) {
+                        throw e;
+                    } catch (final InterruptedException e) {
+                        Log.d(
+                                Config.LOGTAG,
+                                account.getJid().asBareJid()
+                                        + ": thread was interrupted before beginning stream");
+                        return;
+                    } catch (final IOException e) {
+                        throw new UnknownHostException();
+                    }
+                    final Resolver.Result result = winner.result;
+                    localSocket = winner.socket;
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid()
+                                    + ": connected to "
+                                    + result
+                                    + " after "
+                                    + winner.latency
+                                    + "ms");
                     try {
                         // if tls is true, encryption is implied and must not be started
                         features.encryptionEnabled = result.isDirectTls();
                         verifiedHostname =
                                 result.isAuthenticated() ? result.getHostname().toString() : null;
-                        final InetSocketAddress addr;
-                        if (result.getIp() != null) {
-                            addr = new InetSocketAddress(result.getIp(), result.getPort());
-                            Log.d(
-                                    Config.LOGTAG,
-                                    account.getJid().asBareJid().toString()
-                                            + ": using values from resolver "
-                                            + (result.getHostname() == null
-                                                    ? ""
-                                                    : result.getHostname().toString() + "/")
-                                            + result.getIp().getHostAddress()
-                                            + ":"
-                                            + result.getPort()
-                                            + " tls: "
-                                            + features.encryptionEnabled);
-                        } else {
-                            addr =
-                                    new InetSocketAddress(
-                                            IDN.toASCII(result.getHostname().toString()),
-                                            result.getPort());
-                            Log.d(
-                                    Config.LOGTAG,
-                                    account.getJid().asBareJid().toString()
-                                            + ": using values from resolver "
-                                            + result.getHostname().toString()
-                                            + ":"
-                                            + result.getPort()
-                                            + " tls: "
-                                            + features.encryptionEnabled);
-                        }
-
-                        localSocket = new Socket();
-                        localSocket.connect(addr, Config.SOCKET_TIMEOUT * 1000);
-
-                        if (features.encryptionEnabled) {
-                            localSocket = upgradeSocketToTls(localSocket);
-                        }
-
                         localSocket.setSoTimeout(Config.SOCKET_TIMEOUT * 1000);
                         if (startXmpp(localSocket)) {
                             localSocket.setSoTimeout(
                                     0); // reset to 0; once the connection is established we don’t
                             // want this
-                            if (!hardcoded && !result.equals(storedBackupResult)) {
+                            if (!hardcoded) {
                                 mXmppConnectionService.databaseBackend.saveResolverResult(
-                                        domain, result);
+                                        domain, result, winner.latency);
                             }
                             this.currentResolverResult = result;
                             this.seeOtherHostResolverResult = null;
@@ -461,7 +468,8 @@ public class XmppConnection implements Runnable {
                             throw new StateChangingException(Account.State.STREAM_OPENING_ERROR);
                         }
                     } catch (final StateChangingException e) {
-                        if (!iterator.hasNext()) {
+                        results.remove(result);
+                        if (results.isEmpty()) {
                             throw e;
                         }
                     } catch (InterruptedException e) {
@@ -479,7 +487,9 @@ public class XmppConnection implements Runnable {
                                         + "("
                                         + e.getClass().getName()
                                         + ")");
-                        if (!iterator.hasNext()) {
+                        FileBackend.close(localSocket);
+                        results.remove(result);
+                        if (results.isEmpty()) {
                             throw new UnknownHostException();
                         }
                     }
@@ -559,24 +569,27 @@ public class XmppConnection implements Runnable {
 
     private SSLSocketFactory getSSLSocketFactory()
             throws NoSuchAlgorithmException, KeyManagementException {
-        final SSLContext sc = SSLSockets.getSSLContext();
         final MemorizingTrustManager trustManager =
                 this.mXmppConnectionService.getMemorizingTrustManager();
+        final String privateKeyAlias = account.getPrivateKeyAlias();
         final KeyManager[] keyManager;
-        if (account.getPrivateKeyAlias() != null) {
-            keyManager = new KeyManager[] {new MyKeyManager()};
+        if (privateKeyAlias != null) {
+            keyManager = new KeyManager[] {new MyKeyManager(account, mXmppConnectionService)};
         } else {
             keyManager = null;
         }
         final String domain = account.getServer();
-        sc.init(
-                keyManager,
-                new X509TrustManager[] {
-                    mInteractive
-                            ? trustManager.getInteractive(domain)
-                            : trustManager.getNonInteractive(domain)
-                },
-                SECURE_RANDOM);
+        // the context is reused across reconnects so that the TLS session can be resumed
+        final SSLContext sc =
+                SSLContextCache.get(
+                        account.getUuid(),
+                        domain,
+                        mInteractive,
+                        privateKeyAlias,
+                        keyManager,
+                        mInteractive
+                                ? trustManager.getInteractive(domain)
+                                : trustManager.getNonInteractive(domain));
         return sc.getSocketFactory();
     }
 
@@ -660,40 +673,23 @@ public class XmppConnection implements Runnable {
                 processEnabled(enabled);
             } else if (nextTag.isStart("r", Namespace.STREAM_MANAGEMENT)) {
                 tagReader.readElement(nextTag);
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(
-                            Config.LOGTAG,
-                            account.getJid().asBareJid()
-                                    + ": acknowledging stanza #"
-                                    + this.stanzasReceived);
-                }
-                final Ack ack = new Ack(this.stanzasReceived);
-                tagWriter.writeStanzaAsync(ack);
+                final int stanzasReceived = this.stanzasReceived;
+                final TagWriter currentTagWriter = this.tagWriter;
+                // only acknowledge once everything up to this point has actually been handled
+                stanzaDispatcher.dispatch(
+                        "sm request",
+                        () -> {
+                            if (Config.EXTENDED_SM_LOGGING) {
+                                Log.d(
+                                        Config.LOGTAG,
+                                        account.getJid().asBareJid()
+                                                + ": acknowledging stanza #"
+                                                + stanzasReceived);
+                            }
+                            currentTagWriter.writeStanzaAsync(new Ack(stanzasReceived));
+                        });
             } else if (nextTag.isStart("a", Namespace.STREAM_MANAGEMENT)) {
-                boolean accountUiNeedsRefresh = false;
-                synchronized (NotificationService.CATCHUP_LOCK) {
-                    if (mWaitingForSmCatchup.compareAndSet(true, false)) {
-                        final int messageCount = mSmCatchupMessageCounter.get();
-                        final int pendingIQs = packetCallbacks.size();
-                        Log.d(
-                                Config.LOGTAG,
-                                account.getJid().asBareJid()
-                                        + ": SM catchup complete (messages="
-                                        + messageCount
-                                        + ", pending IQs="
-                                        + pendingIQs
-                                        + ")");
-                        accountUiNeedsRefresh = true;
-                        if (messageCount > 0) {
-                            mXmppConnectionService
-                                    .getNotificationService()
-                                    .finishBacklog(true, account);
-                        }
-                    }
-                }
-                if (accountUiNeedsRefresh) {
-                    mXmppConnectionService.updateAccountUi();
-                }
+                stanzaDispatcher.dispatch("sm catchup", this::processSmCatchup);
                 final var ack = tagReader.readElement(nextTag, Ack.class);
                 lastPacketReceived = SystemClock.elapsedRealtime();
                 final boolean acknowledgedMessages;
@@ -727,6 +723,31 @@ public class XmppConnection implements Runnable {
         }
     }
 
+    private void processSmCatchup() {
+        boolean accountUiNeedsRefresh = false;
+        synchronized (NotificationService.CATCHUP_LOCK) {
+            if (mWaitingForSmCatchup.compareAndSet(true, false)) {
+                final int messageCount = mSmCatchupMessageCounter.get();
+                final int pendingIQs = packetCallbacks.size();
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": SM catchup complete (messages="
+                                + messageCount
+                                + ", pending IQs="
+                                + pendingIQs
+                                + ")");
+                accountUiNeedsRefresh = true;
+                if (messageCount > 0) {
+                    mXmppConnectionService.getNotificationService().finishBacklog(true, account);
+                }
+            }
+        }
+        if (accountUiNeedsRefresh) {
+            mXmppConnectionService.updateAccountUi();
+        }
+    }
+
     private void processChallenge(final Element challenge) throws IOException {
         final SaslMechanism.Version version;
         try {
@@ -1070,6 +1091,17 @@ public class XmppConnection implements Runnable {
     private void processResumed(final Resumed resumed) throws StateChangingException {
         this.inSmacksSession = true;
         this.isBound = true;
+        final TagWriter currentTagWriter = this.tagWriter;
+        currentTagWriter.cork();
+        try {
+            resendAfterResumption(resumed);
+        } finally {
+            currentTagWriter.uncork();
+        }
+        changeStatusToOnline();
+    }
+
+    private void resendAfterResumption(final Resumed resumed) throws StateChangingException {
         this.tagWriter.writeStanzaAsync(new Request());
         lastPacketReceived = SystemClock.elapsedRealtime();
         final Optional<Integer> h = resumed.getHandled();
@@ -1113,7 +1145,6 @@ public class XmppConnection implements Runnable {
             }
             sendPacket(packet);
         }
-        changeStatusToOnline();
     }
 
     private void changeStatusToOnline() {
@@ -1231,8 +1262,10 @@ public class XmppConnection implements Runnable {
             return;
         }
         if (packet.hasExtension(Jingle.class) && packet.getType() == Iq.Type.SET && isBound) {
-            if (this.jingleListener != null) {
-                this.jingleListener.onJinglePacketReceived(account, packet);
+            final OnJinglePacketReceived jingleListener = this.jingleListener;
+            if (jingleListener != null) {
+                stanzaDispatcher.dispatch(
+                        "jingle", () -> jingleListener.onJinglePacketReceived(account, packet));
             }
         } else {
             final var callback = getIqPacketReceivedCallback(packet);
@@ -1244,6 +1277,28 @@ public class XmppConnection implements Runnable {
                                 + packet.getFrom());
                 return;
             }
+            if (isBound) {
+                // callbacks need to see the result of every stanza received before (for
+                // example a MAM query finishing after its results have been stored)
+                stanzaDispatcher.dispatch(
+                        "iq",
+                        () -> {
+                            try {
+                                callback.accept(packet);
+                            } catch (final StateChangingError error) {
+                                // the reader thread would turn this into a state change; the
+                                // dispatcher has to do it itself
+                                Log.d(
+                                        Config.LOGTAG,
+                                        account.getJid().asBareJid()
+                                                + ": IQ callback changed state to "
+                                                + error.state);
+                                changeStatus(error.state);
+                                forceCloseSocket();
+                            }
+                        });
+                return;
+            }
             try {
                 callback.accept(packet);
             } catch (final StateChangingError error) {
@@ -1314,7 +1369,7 @@ public class XmppConnection implements Runnable {
                             + "Not processing message. Thread was interrupted");
             return;
         }
-        this.messageListener.accept(packet);
+        stanzaDispatcher.dispatch("message", () -> this.messageListener.accept(packet));
     }
 
     private void processPresence(final Tag currentTag) throws IOException {
@@ -1336,7 +1391,7 @@ public class XmppConnection implements Runnable {
                             + "Not processing presence. Thread was interrupted");
             return;
         }
-        this.presenceListener.accept(packet);
+        stanzaDispatcher.dispatch("presence", () -> this.presenceListener.accept(packet));
     }
 
     private void sendStartTLS() throws IOException {
@@ -1371,7 +1426,39 @@ public class XmppConnection implements Runnable {
         sslSocket.close();
     }
 
+    /** Used by {@link ConnectionRacer} for every attempt, possibly on several threads at once. */
+    private Socket connect(final Resolver.Result result, final Socket socket) throws IOException {
+        final InetSocketAddress addr;
+        if (result.getIp() != null) {
+            addr = new InetSocketAddress(result.getIp(), result.getPort());
+        } else {
+            addr = new InetSocketAddress(IDN.toASCII(result.getHostname().toString()), result.getPort());
+        }
+        Log.d(
+                Config.LOGTAG,
+                account.getJid().asBareJid().toString()
+                        + ": using values from resolver "
+                        + (result.getHostname() == null ? "" : result.getHostname().toString() + "/")
+                        + (result.getIp() == null ? "" : result.getIp().getHostAddress())
+                        + ":"
+                        + result.getPort()
+                        + " tls: "
+                        + result.isDirectTls());
+        socket.connect(addr, Config.SOCKET_TIMEOUT * 1000);
+        if (result.isDirectTls()) {
+            final String verifiedHostname =
+                    result.isAuthenticated() ? result.getHostname().toString() : null;
+            return upgradeSocketToTls(socket, verifiedHostname);
+        }
+        return socket;
+    }
+
     private SSLSocket upgradeSocketToTls(final Socket socket) throws IOException {
+        return upgradeSocketToTls(socket, this.verifiedHostname);
+    }
+
+    private SSLSocket upgradeSocketToTls(final Socket socket, final String verifiedHostname)
+            throws IOException {
         final SSLSocketFactory sslSocketFactory;
         try {
             sslSocketFactory = getSSLSocketFactory();
@@ -1386,10 +1473,11 @@ public class XmppConnection implements Runnable {
         SSLSockets.setSecurity(sslSocket);
         SSLSockets.setHostname(sslSocket, IDN.toASCII(account.getServer()));
         SSLSockets.setApplicationProtocol(sslSocket, "xmpp-client");
+        SSLContextCache.trackHandshake(sslSocket);
         final XmppDomainVerifier xmppDomainVerifier = new XmppDomainVerifier();
         try {
             if (!xmppDomainVerifier.verify(
-                    account.getServer(), this.verifiedHostname, sslSocket.getSession())) {
+                    account.getServer(), verifiedHostname, sslSocket.getSession())) {
                 Log.d(
                         Config.LOGTAG,
                         account.getJid().asBareJid()
@@ -2581,7 +2669,11 @@ public class XmppConnection implements Runnable {
                 final CountDownLatch streamCountDownLatch = this.mStreamCountDownLatch;
                 try {
                     currentTagWriter.await(1, TimeUnit.SECONDS);
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": closing stream");
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid()
+                                    + ": closing stream. wrote "
+                                    + currentTagWriter.getStatistics());
                     currentTagWriter.writeTag(Tag.end("stream:stream"));
                     if (streamCountDownLatch != null) {
                         if (streamCountDownLatch.await(1, TimeUnit.SECONDS)) {
@@ -2779,7 +2871,18 @@ public class XmppConnection implements Runnable {
         sendIqPacket(iqPacket, unregisteredIqListener);
     }
 
-    private class MyKeyManager implements X509KeyManager {
+    // static so that the cached SSLContext holding it does not keep the connection alive
+    private static class MyKeyManager implements X509KeyManager {
+
+        private final Account account;
+        private final XmppConnectionService mXmppConnectionService;
+
+        private MyKeyManager(
+                final Account account, final XmppConnectionService xmppConnectionService) {
+            this.account = account;
+            this.mXmppConnectionService = xmppConnectionService;
+        }
+
         @Override
         public String chooseClientAlias(String[] strings, Principal[] principals, Socket socket) {
             return account.getPrivateKeyAlias();
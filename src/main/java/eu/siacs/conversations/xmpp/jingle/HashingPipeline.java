@@ -0,0 +1,105 @@
+package eu.siacs.conversations.xmpp.jingle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.xmpp.jingle.stanzas.FileTransferDescription;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Computes the SHA-1 and SHA-256 checksums of a file transfer on a separate thread so that hashing
+ * overlaps with reading from and writing to the transport. The transceiver {@link #acquire()}s one
+ * of a fixed number of reusable buffers, fills it, writes it out and then {@link #submit(byte[],
+ * int)}s it. Once hashed the buffer goes back into the pool.
+ */
+class HashingPipeline implements Closeable {
+
+    private static final Chunk END = new Chunk(null, 0);
+
+    private final BlockingQueue<byte[]> free =
+            new ArrayBlockingQueue<>(Config.JINGLE_FILE_TRANSFER_BUFFERS);
+    private final BlockingQueue<Chunk> filled =
+            new ArrayBlockingQueue<>(Config.JINGLE_FILE_TRANSFER_BUFFERS + 1);
+    private final Hasher sha1Hasher = Hashing.sha1().newHasher();
+    private final Hasher sha256Hasher = Hashing.sha256().newHasher();
+    private final Thread thread;
+
+    HashingPipeline() {
+        for (int i = 0; i < Config.JINGLE_FILE_TRANSFER_BUFFERS; ++i) {
+            free.add(new byte[Config.JINGLE_FILE_TRANSFER_BUFFER_SIZE]);
+        }
+        this.thread = new Thread(this::hash, "HashingPipeline");
+        this.thread.start();
+    }
+
+    byte[] acquire() throws InterruptedIOException {
+        try {
+            return free.take();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for free buffer");
+        }
+    }
+
+    void submit(final byte[] buffer, final int length) throws InterruptedIOException {
+        try {
+            filled.put(new Chunk(buffer, length));
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("interrupted while submitting buffer");
+        }
+    }
+
+    /** Waits for all submitted buffers to be hashed and returns the checksums. */
+    List<FileTransferDescription.Hash> finish() throws InterruptedIOException {
+        try {
+            filled.put(END);
+            thread.join();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for checksums");
+        }
+        return ImmutableList.of(
+                new FileTransferDescription.Hash(
+                        sha1Hasher.hash().asBytes(), FileTransferDescription.Algorithm.SHA_1),
+                new FileTransferDescription.Hash(
+                        sha256Hasher.hash().asBytes(), FileTransferDescription.Algorithm.SHA_256));
+    }
+
+    @Override
+    public void close() {
+        if (thread.isAlive()) {
+            thread.interrupt();
+        }
+    }
+
+    private void hash() {
+        try {
+            while (true) {
+                final Chunk chunk = filled.take();
+                if (chunk == END) {
+                    return;
+                }
+                sha1Hasher.putBytes(chunk.buffer, 0, chunk.length);
+                sha256Hasher.putBytes(chunk.buffer, 0, chunk.length);
+                free.put(chunk.buffer);
+            }
+        } catch (final InterruptedException ignored) {
+            // transfer has been aborted
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] buffer;
+        private final int length;
+
+        private Chunk(final byte[] buffer, final int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
@@ -9,7 +9,7 @@ import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -1277,6 +1277,7 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
         protected final long total;
         protected long transmitted = 0;
         private int progress = Integer.MIN_VALUE;
+        private long nextProgressUpdate = 0;
         private final Runnable updateRunnable;
 
         private AbstractFileTransceiver(
@@ -1305,6 +1306,11 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
         }
 
         public void updateProgress() {
+            // only bother computing the percentage once another percent has been transferred
+            if (transmitted < nextProgressUpdate && transmitted < total) {
+                return;
+            }
+            nextProgressUpdate = transmitted + Math.max(1, total / 100);
             final int current = getProgress();
             final boolean update;
             synchronized (this) {
@@ -1320,6 +1326,17 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
             }
         }
 
+        /**
+         * Reads until the buffer is full, the expected number of bytes has been reached or the
+         * stream ends. Filling the whole buffer keeps the number of writes and hand-overs to the
+         * hashing thread down when the source returns data in small pieces.
+         */
+        protected int fill(final InputStream inputStream, final byte[] buffer)
+                throws IOException {
+            final int length = Ints.saturatedCast(Math.min(buffer.length, total - transmitted));
+            return ByteStreams.read(inputStream, buffer, 0, length);
+        }
+
         protected void awaitTransportTermination() {
             try {
                 this.transportTerminationLatch.await();
@@ -1365,19 +1382,17 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
         @Override
         public void run() {
             Log.d(Config.LOGTAG, "file transmitter attempting to send " + total + " bytes");
-            final var sha1Hasher = Hashing.sha1().newHasher();
-            final var sha256Hasher = Hashing.sha256().newHasher();
-            try (final var fileInputStream = openFileInputStream()) {
-                final var buffer = new byte[4096];
+            try (final var fileInputStream = openFileInputStream();
+                    final var hashingPipeline = new HashingPipeline()) {
                 while (total - transmitted > 0) {
-                    final int count = fileInputStream.read(buffer);
-                    if (count == -1) {
+                    final var buffer = hashingPipeline.acquire();
+                    final int count = fill(fileInputStream, buffer);
+                    if (count <= 0) {
                         throw new EOFException(
                                 String.format("reached EOF after %d/%d", transmitted, total));
                     }
                     outputStream.write(buffer, 0, count);
-                    sha1Hasher.putBytes(buffer, 0, count);
-                    sha256Hasher.putBytes(buffer, 0, count);
+                    hashingPipeline.submit(buffer, count);
                     transmitted += count;
                     updateProgress();
                 }
@@ -1385,21 +1400,13 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
                 Log.d(
                         Config.LOGTAG,
                         "transmitted " + transmitted + " bytes from " + file.getAbsolutePath());
-                final List<FileTransferDescription.Hash> hashes =
-                        ImmutableList.of(
-                                new FileTransferDescription.Hash(
-                                        sha1Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_1),
-                                new FileTransferDescription.Hash(
-                                        sha256Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_256));
-                complete.set(hashes);
+                complete.set(hashingPipeline.finish());
             } catch (final Exception e) {
                 complete.setException(e);
             }
-            // the transport implementations backed by PipedOutputStreams do not like it when
-            // the writing Thread (this thread) goes away. so we just wait until the other peer
-            // has received our file and we are shutting down the transport
+            // closing the output stream signals EOF to transports that buffer outgoing data
+            // (IBB, WebRTC). so we just wait until the other peer has received our file and we
+            // are shutting down the transport
             Log.d(Config.LOGTAG, "waiting for transport to terminate before stopping thread");
             awaitTransportTermination();
             closeTransport(outputStream);
@@ -1445,34 +1452,24 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
         @Override
         public void run() {
             Log.d(Config.LOGTAG, "file receiver attempting to receive " + total + " bytes");
-            final var sha1Hasher = Hashing.sha1().newHasher();
-            final var sha256Hasher = Hashing.sha256().newHasher();
-            try (final var fileOutputStream = openFileOutputStream()) {
-                final var buffer = new byte[4096];
+            try (final var fileOutputStream = openFileOutputStream();
+                    final var hashingPipeline = new HashingPipeline()) {
                 while (total - transmitted > 0) {
-                    final int count = inputStream.read(buffer);
-                    if (count == -1) {
+                    final var buffer = hashingPipeline.acquire();
+                    final int count = fill(inputStream, buffer);
+                    if (count <= 0) {
                         throw new EOFException(
                                 String.format("reached EOF after %d/%d", transmitted, total));
                     }
                     fileOutputStream.write(buffer, 0, count);
-                    sha1Hasher.putBytes(buffer, 0, count);
-                    sha256Hasher.putBytes(buffer, 0, count);
+                    hashingPipeline.submit(buffer, count);
                     transmitted += count;
                     updateProgress();
                 }
                 Log.d(
                         Config.LOGTAG,
                         "written " + transmitted + " bytes to " + file.getAbsolutePath());
-                final List<FileTransferDescription.Hash> hashes =
-                        ImmutableList.of(
-                                new FileTransferDescription.Hash(
-                                        sha1Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_1),
-                                new FileTransferDescription.Hash(
-                                        sha256Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_256));
-                complete.set(hashes);
+                complete.set(hashingPipeline.finish());
             } catch (final Exception e) {
                 complete.setException(e);
             }
@@ -0,0 +1,218 @@
+package eu.siacs.conversations.xmpp.jingle.transports;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded byte channel between exactly one writing and one reading thread; a replacement for
+ * {@link java.io.PipedInputStream} and {@link java.io.PipedOutputStream}, which poll once per
+ * second when blocked and are limited to tiny copies.
+ *
+ * <p>The read and write positions are only ever advanced by their respective owner and published
+ * through volatile fields, so the data path does not take any locks. A thread only synchronizes on
+ * the monitor when it finds the buffer empty (reader) or full (writer) and has to park. The other
+ * side checks the waiting flag after publishing its position and wakes it up.
+ */
+class ByteRingBuffer {
+
+    private final byte[] buffer;
+    private final int mask;
+
+    private volatile long readPosition = 0;
+    private volatile long writePosition = 0;
+
+    private volatile boolean writerClosed = false;
+    private volatile boolean readerClosed = false;
+
+    private volatile boolean readerWaiting = false;
+    private volatile boolean writerWaiting = false;
+
+    private final Object monitor = new Object();
+
+    private final InputStream inputStream =
+            new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    final byte[] single = new byte[1];
+                    final int count = read(single, 0, 1);
+                    return count < 0 ? -1 : (single[0] & 0xff);
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len)
+                        throws IOException {
+                    return ByteRingBuffer.this.read(b, off, len);
+                }
+
+                @Override
+                public int available() {
+                    return ByteRingBuffer.this.available();
+                }
+
+                @Override
+                public void close() {
+                    closeReader();
+                }
+            };
+
+    private final OutputStream outputStream =
+            new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len)
+                        throws IOException {
+                    ByteRingBuffer.this.write(ByteBuffer.wrap(b, off, len));
+                }
+
+                @Override
+                public void close() {
+                    closeWriter();
+                }
+            };
+
+    /**
+     * @param capacity size of the buffer in bytes. Must be a power of two.
+     */
+    ByteRingBuffer(final int capacity) {
+        Preconditions.checkArgument(
+                capacity > 0 && Integer.bitCount(capacity) == 1,
+                "capacity must be a power of two");
+        this.buffer = new byte[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public InputStream getInputStream() {
+        return this.inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.outputStream;
+    }
+
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /** Writes all remaining bytes of the source, blocking while the buffer is full. */
+    public void write(final ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            if (readerClosed) {
+                throw new IOException("read end of ring buffer has been closed");
+            }
+            if (writerClosed) {
+                throw new IOException("ring buffer has been closed");
+            }
+            final long write = this.writePosition;
+            final int free = buffer.length - (int) (write - this.readPosition);
+            if (free == 0) {
+                awaitSpace(write);
+                continue;
+            }
+            final int count = Math.min(free, source.remaining());
+            final int offset = (int) (write & mask);
+            final int first = Math.min(count, buffer.length - offset);
+            source.get(buffer, offset, first);
+            if (first < count) {
+                source.get(buffer, 0, count - first);
+            }
+            this.writePosition = write + count;
+            if (readerWaiting) {
+                signal();
+            }
+        }
+    }
+
+    /**
+     * Reads at least one byte, blocking while the buffer is empty.
+     *
+     * @return the number of bytes read or -1 if the writer has been closed and everything has been
+     *     read
+     */
+    public int read(final byte[] destination, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (readerClosed) {
+                throw new IOException("ring buffer has been closed");
+            }
+            final long read = this.readPosition;
+            final int available = (int) (this.writePosition - read);
+            if (available == 0) {
+                if (writerClosed && this.writePosition == read) {
+                    return -1;
+                }
+                awaitData(read);
+                continue;
+            }
+            final int count = Math.min(available, len);
+            final int offset = (int) (read & mask);
+            final int first = Math.min(count, buffer.length - offset);
+            System.arraycopy(buffer, offset, destination, off, first);
+            if (first < count) {
+                System.arraycopy(buffer, 0, destination, off + first, count - first);
+            }
+            this.readPosition = read + count;
+            if (writerWaiting) {
+                signal();
+            }
+            return count;
+        }
+    }
+
+    /** Signals end of stream to the reader once it has consumed everything written so far. */
+    public void closeWriter() {
+        this.writerClosed = true;
+        signal();
+    }
+
+    public void closeReader() {
+        this.readerClosed = true;
+        signal();
+    }
+
+    private void awaitData(final long read) throws InterruptedIOException {
+        synchronized (monitor) {
+            readerWaiting = true;
+            try {
+                while (writePosition == read && !writerClosed && !readerClosed) {
+                    monitor.wait();
+                }
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for data");
+            } finally {
+                readerWaiting = false;
+            }
+        }
+    }
+
+    private void awaitSpace(final long write) throws InterruptedIOException {
+        synchronized (monitor) {
+            writerWaiting = true;
+            try {
+                while (write - readPosition == buffer.length && !readerClosed && !writerClosed) {
+                    monitor.wait();
+                }
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for space");
+            } finally {
+                writerWaiting = false;
+            }
+        }
+    }
+
+    private void signal() {
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+}
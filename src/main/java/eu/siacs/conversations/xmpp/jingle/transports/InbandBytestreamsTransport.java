@@ -23,8 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
@@ -34,9 +33,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class InbandBytestreamsTransport implements Transport {
 
     private static final int DEFAULT_BLOCK_SIZE = 8192;
+    private static final int BUFFER_SIZE = 8 * DEFAULT_BLOCK_SIZE;
 
-    private final PipedInputStream pipedInputStream = new PipedInputStream(DEFAULT_BLOCK_SIZE);
-    private final PipedOutputStream pipedOutputStream = new PipedOutputStream();
+    private final ByteRingBuffer outgoing = new ByteRingBuffer(BUFFER_SIZE);
+    private final ByteRingBuffer incoming = new ByteRingBuffer(BUFFER_SIZE);
     private final CountDownLatch terminationLatch = new CountDownLatch(1);
 
     private final XmppConnection xmppConnection;
@@ -72,7 +72,12 @@ public class InbandBytestreamsTransport implements Transport {
         this.streamId = streamId;
         this.blockSize = Math.min(DEFAULT_BLOCK_SIZE, blockSize);
         this.blockSender =
-                new BlockSender(xmppConnection, with, streamId, this.blockSize, pipedInputStream);
+                new BlockSender(
+                        xmppConnection,
+                        with,
+                        streamId,
+                        this.blockSize,
+                        outgoing.getInputStream());
         this.blockSenderThread = new Thread(blockSender);
     }
 
@@ -141,8 +146,7 @@ public class InbandBytestreamsTransport implements Transport {
         }
         Log.d(Config.LOGTAG, "ibb received " + buffer.length + " bytes");
         try {
-            pipedOutputStream.write(buffer);
-            pipedOutputStream.flush();
+            incoming.write(ByteBuffer.wrap(buffer));
             return true;
         } catch (final IOException e) {
             Log.d(Config.LOGTAG, "unable to receive ibb data", e);
@@ -152,13 +156,8 @@ public class InbandBytestreamsTransport implements Transport {
 
     private boolean receiveClose() {
         if (this.isReceiving.compareAndSet(true, false)) {
-            try {
-                this.pipedOutputStream.close();
-                return true;
-            } catch (final IOException e) {
-                Log.d(Config.LOGTAG, "could not close pipedOutStream");
-                return false;
-            }
+            this.incoming.closeWriter();
+            return true;
         } else {
             Log.d(Config.LOGTAG, "received ibb close but was not receiving");
             return false;
@@ -182,29 +181,17 @@ public class InbandBytestreamsTransport implements Transport {
         this.terminationLatch.countDown();
         this.blockSender.close();
         this.blockSenderThread.interrupt();
-        closeQuietly(this.pipedOutputStream);
-    }
-
-    private static void closeQuietly(final OutputStream outputStream) {
-        try {
-            outputStream.close();
-        } catch (final IOException ignored) {
-
-        }
+        this.incoming.closeWriter();
     }
 
     @Override
-    public OutputStream getOutputStream() throws IOException {
-        final var outputStream = new PipedOutputStream();
-        this.pipedInputStream.connect(outputStream);
-        return outputStream;
+    public OutputStream getOutputStream() {
+        return this.outgoing.getOutputStream();
     }
 
     @Override
-    public InputStream getInputStream() throws IOException {
-        final var inputStream = new PipedInputStream();
-        this.pipedOutputStream.connect(inputStream);
-        return inputStream;
+    public InputStream getInputStream() {
+        return this.incoming.getInputStream();
     }
 
     @Override
@@ -238,7 +225,7 @@ public class InbandBytestreamsTransport implements Transport {
         private final String streamId;
 
         private int blockSize;
-        private final PipedInputStream inputStream;
+        private final InputStream inputStream;
         private final Semaphore semaphore = new Semaphore(3);
         private final AtomicInteger sequencer = new AtomicInteger();
         private final AtomicBoolean isSending = new AtomicBoolean(true);
@@ -248,7 +235,7 @@ public class InbandBytestreamsTransport implements Transport {
                 final Jid with,
                 String streamId,
                 int blockSize,
-                PipedInputStream inputStream) {
+                InputStream inputStream) {
             this.xmppConnection = xmppConnection;
             this.with = with;
             this.streamId = streamId;
@@ -36,11 +36,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -50,12 +46,14 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 
 public class WebRTCDataChannelTransport implements Transport {
 
     private static final int BUFFER_SIZE = 16_384;
+    private static final int RING_BUFFER_SIZE = 64 * 1024;
     private static final int MAX_SENT_BUFFER = 256 * 1024;
 
     private final ExecutorService executorService = Executors.newSingleThreadExecutor();
@@ -65,9 +63,8 @@ public class WebRTCDataChannelTransport implements Transport {
     private final AtomicBoolean readyToSentIceCandidates = new AtomicBoolean(false);
     private final Queue<IceCandidate> pendingOutgoingIceCandidates = new LinkedList<>();
 
-    private final PipedOutputStream pipedOutputStream = new PipedOutputStream();
-    private final WritableByteChannel writableByteChannel = Channels.newChannel(pipedOutputStream);
-    private final PipedInputStream pipedInputStream = new PipedInputStream(BUFFER_SIZE);
+    private final ByteRingBuffer incoming = new ByteRingBuffer(RING_BUFFER_SIZE);
+    private final ByteRingBuffer outgoing = new ByteRingBuffer(RING_BUFFER_SIZE);
 
     private final AtomicBoolean connected = new AtomicBoolean(false);
 
@@ -192,7 +189,7 @@ public class WebRTCDataChannelTransport implements Transport {
                     @Override
                     public void onMessage(final DataChannel.Buffer buffer) {
                         try {
-                            WebRTCDataChannelTransport.this.writableByteChannel.write(buffer.data);
+                            WebRTCDataChannelTransport.this.incoming.write(buffer.data);
                         } catch (final IOException e) {
                             Log.d(Config.LOGTAG, "error writing to output stream");
                         }
@@ -268,25 +265,21 @@ public class WebRTCDataChannelTransport implements Transport {
         final var dataChannelInit = new DataChannel.Init();
         dataChannelInit.protocol = "xmpp-jingle";
         final var dataChannel = peerConnection.createDataChannel("test", dataChannelInit);
-        this.dataChannelWriter = new DataChannelWriter(this.pipedInputStream, dataChannel);
+        this.dataChannelWriter = new DataChannelWriter(this.outgoing.getInputStream(), dataChannel);
         Log.d(Config.LOGTAG, "the 'sending' data channel has id " + dataChannel.id());
         new Thread(this.dataChannelWriter).start();
         return peerConnection;
     }
 
     @Override
-    public OutputStream getOutputStream() throws IOException {
-        final var outputStream = new PipedOutputStream();
-        this.pipedInputStream.connect(outputStream);
-        this.dataChannelWriter.pipedInputStreamLatch.countDown();
-        return outputStream;
+    public OutputStream getOutputStream() {
+        this.dataChannelWriter.outputStreamLatch.countDown();
+        return this.outgoing.getOutputStream();
     }
 
     @Override
-    public InputStream getInputStream() throws IOException {
-        final var inputStream = new PipedInputStream(BUFFER_SIZE);
-        this.pipedOutputStream.connect(inputStream);
-        return inputStream;
+    public InputStream getInputStream() {
+        return this.incoming.getInputStream();
     }
 
     @Override
@@ -346,19 +339,11 @@ public class WebRTCDataChannelTransport implements Transport {
             peerConnectionFactory.dispose();
         }
         this.peerConnectionFactory = null;
-        closeQuietly(this.pipedOutputStream);
+        this.incoming.closeWriter();
         this.terminationLatch.countDown();
         Log.d(Config.LOGTAG, WebRTCDataChannelTransport.class.getSimpleName() + " terminated");
     }
 
-    private static void closeQuietly(final OutputStream outputStream) {
-        try {
-            outputStream.close();
-        } catch (final IOException ignored) {
-
-        }
-    }
-
     private static void terminate(final DataChannel dataChannel) {
         if (dataChannel == null) {
             Log.d(Config.LOGTAG, "nothing to terminate. data channel is already null");
@@ -545,8 +530,10 @@ public class WebRTCDataChannelTransport implements Transport {
 
     private static class DataChannelWriter implements Runnable {
 
-        private final CountDownLatch pipedInputStreamLatch = new CountDownLatch(1);
+        private final CountDownLatch outputStreamLatch = new CountDownLatch(1);
         private final CountDownLatch dataChannelLatch = new CountDownLatch(1);
+        private final Object bufferedAmountMonitor = new Object();
+        private final AtomicLong bufferedAmountChanges = new AtomicLong();
         private final AtomicBoolean isSending = new AtomicBoolean(true);
         private final InputStream inputStream;
         private final DataChannel dataChannel;
@@ -563,21 +550,25 @@ public class WebRTCDataChannelTransport implements Transport {
                                 dataChannelLatch.countDown();
                             }
                         }
+
+                        @Override
+                        public void onBufferedAmountChange(final long previousAmount) {
+                            bufferedAmountChanges.incrementAndGet();
+                            synchronized (bufferedAmountMonitor) {
+                                bufferedAmountMonitor.notifyAll();
+                            }
+                        }
                     };
             this.dataChannel.registerObserver(stateChangeObserver);
         }
 
         public void run() {
             try {
-                this.pipedInputStreamLatch.await();
+                this.outputStreamLatch.await();
                 this.dataChannelLatch.await();
-                final var buffer = new byte[4096];
+                final var buffer = new byte[BUFFER_SIZE];
                 while (isSending.get()) {
-                    final long bufferedAmount = dataChannel.bufferedAmount();
-                    if (bufferedAmount > MAX_SENT_BUFFER) {
-                        Thread.sleep(50);
-                        continue;
-                    }
+                    awaitBufferedAmountBelowThreshold();
                     final int count = this.inputStream.read(buffer);
                     if (count < 0) {
                         Log.d(Config.LOGTAG, "DataChannelWriter reached EOF");
@@ -596,6 +587,22 @@ public class WebRTCDataChannelTransport implements Transport {
             }
         }
 
+        private void awaitBufferedAmountBelowThreshold() throws InterruptedException {
+            while (isSending.get()) {
+                // bufferedAmount() is a call into native code that may need the thread delivering
+                // onBufferedAmountChange(); so only the change counter is read under the monitor
+                final long changes = bufferedAmountChanges.get();
+                if (dataChannel.bufferedAmount() <= MAX_SENT_BUFFER) {
+                    return;
+                }
+                synchronized (bufferedAmountMonitor) {
+                    while (isSending.get() && bufferedAmountChanges.get() == changes) {
+                        bufferedAmountMonitor.wait();
+                    }
+                }
+            }
+        }
+
         private void send(final ByteBuffer byteBuffer) throws IOException {
             try {
                 dataChannel.send(new DataChannel.Buffer(byteBuffer, true));
@@ -608,6 +615,9 @@ public class WebRTCDataChannelTransport implements Transport {
 
         public void close() {
             this.isSending.set(false);
+            synchronized (bufferedAmountMonitor) {
+                bufferedAmountMonitor.notifyAll();
+            }
             terminate(this.dataChannel);
         }
     }
@@ -3,6 +3,7 @@ package im.conversations.android.xmpp;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
 
 import eu.siacs.conversations.xml.Element;
 
@@ -14,6 +15,19 @@ import java.lang.reflect.InvocationTargetException;
 public final class ExtensionFactory {
 
     public static Element create(final String name, final String namespace) {
+        final Supplier<? extends Extension> factory =
+                Extensions.EXTENSION_FACTORY_MAP.get(new Id(name, namespace));
+        if (factory == null) {
+            return new Element(name, namespace);
+        }
+        return factory.get();
+    }
+
+    /**
+     * Instantiates extensions through their default constructor found via reflection. Used by the
+     * legacy {@link eu.siacs.conversations.xml.XmlReader} mode.
+     */
+    public static Element createReflectively(final String name, final String namespace) {
         final Class<? extends Extension> clazz = of(name, namespace);
         if (clazz == null) {
             return new Element(name, namespace);